@@ -0,0 +1,58 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how well large batches of a single room scale. Every thread enters the same room, so
+ * each batch admits every thread that arrived during the previous one, and the cost of a batch is
+ * dominated by its occupants taking tickets and exiting together. Compare {@code stripes=1}
+ * (every occupant updates the same counters, which is the default) with one stripe per processor.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+    /**
+     * The number of stripes, or {@code 0} for one per processor (rounded up to a power of two).
+     */
+    @Param({"1", "0"})
+    public int stripes;
+
+    @Param({"0", "100"})
+    public int work;
+
+    private Rooms rooms;
+
+    @Setup
+    public void setUp() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int count = stripes > 0 ? stripes : cpus == 1 ? 1 : Integer.highestOneBit(cpus - 1) << 1;
+        rooms = Rooms.builder().waitStrategy(WaitStrategy.spinWithHint()).stripes(count).build(1);
+    }
+
+    @Benchmark
+    public void enterExit() {
+        try (Rooms.Room r = rooms.enter(0)) {
+            if (work > 0) {
+                Blackhole.consumeCPU(work);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package net.mintern.concurrent;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.runner.BenchmarkList;
+import org.openjdk.jmh.runner.BenchmarkListEntry;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.format.OutputFormatFactory;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+/**
+ * Runs the benchmarks once for each thread count in a sweep. All arguments are passed through to
+ * JMH, so the usual options (benchmark regular expressions, {@code -p} parameter overrides,
+ * {@code -prof}, {@code -rf json}, ...) are available. If {@code -t} is given, only that thread
+ * count is run. Otherwise, the sweep covers 1, 2, 4, ... threads up to twice the number of
+ * available processors. Benchmarks that fix their own thread count with {@code @Threads} are left
+ * out of the sweep and run once, as annotated.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams()
+                || cmd.shouldListProfilers() || cmd.shouldListResultFormats()
+                || cmd.getThreads().hasValue()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Set<String> swept = new LinkedHashSet<>();
+        Set<String> fixed = new LinkedHashSet<>();
+        for (BenchmarkListEntry b : BenchmarkList.defaultList().find(
+                OutputFormatFactory.createFormatInstance(System.out, VerboseMode.SILENT),
+                cmd.getIncludes(), cmd.getExcludes())) {
+            String name = "^" + Pattern.quote(b.getUsername()) + "$";
+            if (b.getThreads().hasValue()) {
+                fixed.add(name);
+            } else {
+                swept.add(name);
+            }
+        }
+        if (!swept.isEmpty()) {
+            for (int threads : threadCounts()) {
+                new Runner(excluding(fixed, cmd).threads(threads).build()).run();
+            }
+        }
+        if (!fixed.isEmpty()) {
+            new Runner(excluding(swept, cmd).build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder excluding(Set<String> names, CommandLineOptions cmd) {
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        for (String name : names) {
+            options.exclude(name);
+        }
+        return options;
+    }
+
+    private static List<Integer> threadCounts() {
+        int max = 2 * Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int t = 1; t < max; t *= 2) {
+            counts.add(t);
+        }
+        counts.add(max);
+        return counts;
+    }
+}
@@ -0,0 +1,76 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A generic false-sharing microbenchmark for {@link PaddedAtomicLong}, the padding that
+ * {@code Rooms} uses for its shared counters (directly, and in each cell of its stripes). It
+ * doesn't use {@code Rooms} at all: three groups of threads hammer three independent counters,
+ * in roles like those of a busy room. One thread increments a counter as entrants take tickets,
+ * one increments another as occupants exit, and two spin reading a third as waiters watch for a
+ * grant. With {@code padded=false}, the counters are plain {@link AtomicLong}s allocated together,
+ * so they usually share a cache line. With {@code padded=true}, each is a
+ * {@code PaddedAtomicLong}.
+ * <p>
+ * The roles do not interact logically, so any difference between the two layouts is caused by
+ * false sharing. Run with at least four cores to see it. For the cost of entering and exiting
+ * actual rooms, see {@link RoomsBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class PaddingBenchmark {
+
+    @Param({"false", "true"})
+    public boolean padded;
+
+    private AtomicLong entries;
+    private AtomicLong grant;
+    private AtomicLong exits;
+
+    @Setup
+    public void setUp() {
+        entries = padded ? new PaddedAtomicLong() : new AtomicLong();
+        grant = padded ? new PaddedAtomicLong() : new AtomicLong();
+        exits = padded ? new PaddedAtomicLong() : new AtomicLong();
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(1)
+    public long enter() {
+        return entries.incrementAndGet();
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(2)
+    public long waitForGrant() {
+        return grant.get();
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(1)
+    public long exit() {
+        return exits.incrementAndGet();
+    }
+}
@@ -0,0 +1,172 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link Rooms} against the JDK's lock primitives on the metrics workload from the
+ * {@code Rooms} class documentation. Room {@code 0} is the <i>update</i> room: occupants bump a
+ * pair of shared counters. Every other room is a <i>read</i> room: occupants read both counters,
+ * which must be consistent with each other.
+ * <p>
+ * The lock-based variants map the update room to the shared side of the lock (updates are
+ * themselves atomic, so they may run concurrently) and every read room to the exclusive side. This
+ * is the closest JDK equivalent; it is slightly stricter than {@code Rooms}, which also lets
+ * occupants of the same read room run concurrently. {@code synchronized} serializes everything.
+ * <p>
+ * {@link Mode#Throughput} reports operations per microsecond, and {@link Mode#SampleTime} reports
+ * the latency distribution (including the tail percentiles) of a single operation. Run
+ * {@link BenchmarkMain} to repeat every benchmark across a range of thread counts.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomsBenchmark {
+
+    /**
+     * The total number of rooms: one update room plus {@code rooms - 1} read rooms.
+     */
+    @Param({"2", "4"})
+    public int rooms;
+
+    /**
+     * The percentage of operations that enter the update room. The remaining operations are spread
+     * evenly across the read rooms, so {@code 99} is the 99:1 updater/reader mix.
+     */
+    @Param({"99", "90", "50"})
+    public int updatePercent;
+
+    /**
+     * The amount of additional work performed while inside a room, in {@link Blackhole#consumeCPU}
+     * tokens.
+     */
+    @Param({"0", "100"})
+    public int work;
+
+    private Rooms roomsLock;
+    private ReentrantReadWriteLock readWriteLock;
+    private StampedLock stampedLock;
+    private Object monitor;
+
+    private final AtomicLong units = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        if (rooms < 2) {
+            throw new IllegalArgumentException("need an update room and at least one read room");
+        }
+        roomsLock = new Rooms(rooms);
+        readWriteLock = new ReentrantReadWriteLock();
+        stampedLock = new StampedLock();
+        monitor = new Object();
+    }
+
+    /**
+     * Per-thread room selection. A xorshift generator keeps the selection cheap and free of shared
+     * state, so that it does not perturb the measurement.
+     */
+    @State(Scope.Thread)
+    public static class Chooser {
+
+        private int seed = (int) System.nanoTime() | 1;
+
+        int next(int rooms, int updatePercent) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            int percent = (seed >>> 1) % 100;
+            if (percent < updatePercent) {
+                return 0;
+            }
+            return 1 + percent % (rooms - 1);
+        }
+    }
+
+    @Benchmark
+    public void rooms(Chooser chooser, Blackhole bh) {
+        int room = chooser.next(rooms, updatePercent);
+        try (Rooms.Room r = roomsLock.enter(room)) {
+            operate(room, bh);
+        }
+    }
+
+    @Benchmark
+    public void readWriteLock(Chooser chooser, Blackhole bh) {
+        int room = chooser.next(rooms, updatePercent);
+        if (room == 0) {
+            readWriteLock.readLock().lock();
+            try {
+                operate(room, bh);
+            } finally {
+                readWriteLock.readLock().unlock();
+            }
+        } else {
+            readWriteLock.writeLock().lock();
+            try {
+                operate(room, bh);
+            } finally {
+                readWriteLock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Benchmark
+    public void stampedLock(Chooser chooser, Blackhole bh) {
+        int room = chooser.next(rooms, updatePercent);
+        if (room == 0) {
+            long stamp = stampedLock.readLock();
+            try {
+                operate(room, bh);
+            } finally {
+                stampedLock.unlockRead(stamp);
+            }
+        } else {
+            long stamp = stampedLock.writeLock();
+            try {
+                operate(room, bh);
+            } finally {
+                stampedLock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Benchmark
+    public void synchronizedBlock(Chooser chooser, Blackhole bh) {
+        int room = chooser.next(rooms, updatePercent);
+        synchronized (monitor) {
+            operate(room, bh);
+        }
+    }
+
+    private void operate(int room, Blackhole bh) {
+        if (room == 0) {
+            units.incrementAndGet();
+            total.addAndGet(room + 1);
+        } else {
+            bh.consume(units.get());
+            bh.consume(total.get());
+        }
+        if (work > 0) {
+            Blackhole.consumeCPU(work);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package net.mintern.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how long thousands of threads take to each enter a random room a number of times. With
+ * {@code virtual=true}, the threads are virtual threads, which share a carrier pool the size of the
+ * machine; compare {@code virtualThreadAware}, which parks them, with {@code spinThenPark}, which
+ * holds a carrier for as long as it spins. Virtual threads need Java 21; on older runtimes, the
+ * virtual runs fail in setup and the platform runs still work.
+ * <p>
+ * Each invocation starts and joins all of the threads, so this runs on one JMH thread, and
+ * {@link BenchmarkMain} leaves it out of its {@code -t} sweep. Passing {@code -t} explicitly
+ * overrides that, and each JMH thread then starts its own set of threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+
+    private static final int ROOMS = 4;
+    private static final int ENTRIES_PER_THREAD = 10;
+
+    @Param({"1000", "10000"})
+    public int threads;
+
+    @Param({"true", "false"})
+    public boolean virtual;
+
+    @Param({"virtualThreadAware", "spinThenPark"})
+    public String strategy;
+
+    @Param({"100"})
+    public int work;
+
+    private Rooms rooms;
+    private Method startVirtualThread;
+
+    @Setup
+    public void setUp() throws Exception {
+        WaitStrategy spinThenPark = WaitStrategy.spinThenPark(20, TimeUnit.MICROSECONDS);
+        rooms = new Rooms(ROOMS, "virtualThreadAware".equals(strategy)
+                ? WaitStrategy.virtualThreadAware(spinThenPark) : spinThenPark);
+        if (virtual) {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }
+    }
+
+    @Benchmark
+    public void enterExit() throws Exception {
+        Thread[] started = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t % ROOMS;
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ENTRIES_PER_THREAD; i++) {
+                        try (Rooms.Room r = rooms.enter((first + i) % ROOMS)) {
+                            Blackhole.consumeCPU(work);
+                        }
+                    }
+                }
+            };
+            if (virtual) {
+                started[t] = (Thread) startVirtualThread.invoke(null, task);
+            } else {
+                started[t] = new Thread(task);
+                started[t].start();
+            }
+        }
+        for (Thread t : started) {
+            t.join();
+        }
+    }
+}
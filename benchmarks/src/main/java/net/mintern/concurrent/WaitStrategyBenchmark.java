@@ -0,0 +1,87 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the built-in {@link WaitStrategy} implementations on the {@link RoomsBenchmark}
+ * workload. The interesting runs are the ones with more threads than cores, where spinning
+ * waiters compete with room occupants for CPU time.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WaitStrategyBenchmark {
+
+    @Param({"busySpin", "spinWithHint", "yielding", "exponentialBackoff", "park", "timedPark",
+            "spinThenPark"})
+    public String waitStrategy;
+
+    @Param({"2"})
+    public int rooms;
+
+    @Param({"99", "50"})
+    public int updatePercent;
+
+    @Param({"100", "10000"})
+    public int work;
+
+    private Rooms roomsLock;
+
+    private final AtomicLong units = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        roomsLock = new Rooms(rooms, strategy(waitStrategy));
+    }
+
+    static WaitStrategy strategy(String name) {
+        switch (name) {
+            case "busySpin":
+                return WaitStrategy.busySpin();
+            case "spinWithHint":
+                return WaitStrategy.spinWithHint();
+            case "yielding":
+                return WaitStrategy.yielding();
+            case "exponentialBackoff":
+                return WaitStrategy.exponentialBackoff(1024);
+            case "park":
+                return WaitStrategy.park();
+            case "timedPark":
+                return WaitStrategy.timedPark(100, TimeUnit.MICROSECONDS);
+            case "spinThenPark":
+                return WaitStrategy.spinThenPark(20, TimeUnit.MICROSECONDS);
+            default:
+                throw new IllegalArgumentException("unknown wait strategy: " + name);
+        }
+    }
+
+    @Benchmark
+    public void enterExit(RoomsBenchmark.Chooser chooser, Blackhole bh) {
+        int room = chooser.next(rooms, updatePercent);
+        try (Rooms.Room r = roomsLock.enter(room)) {
+            if (room == 0) {
+                units.incrementAndGet();
+            } else {
+                bh.consume(units.get());
+            }
+            Blackhole.consumeCPU(work);
+        }
+    }
+}
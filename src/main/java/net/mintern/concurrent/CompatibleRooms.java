@@ -0,0 +1,320 @@
+package net.mintern.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A generalization of {@link Rooms} where several rooms may be occupied at once, as long as they
+ * are compatible with each other. Compatibility is given as a symmetric matrix: if
+ * {@code compatible[i][j]}, then threads in room {@code i} and threads in room {@code j} may run
+ * at the same time. For example, with rooms for "append", "read tail" and "compact":
+ * <pre>{@code
+ *  CompatibleRooms rooms = new CompatibleRooms(new boolean[][] {
+ *      // append, readTail, compact
+ *      {  true,    true,    false },  // append
+ *      {  true,    true,    false },  // readTail
+ *      { false,   false,    false },  // compact
+ *  });
+ * }</pre>
+ * Appends and tail reads run together, while a compaction runs alone. The diagonal says whether a
+ * room is compatible with itself; a room that isn't, like "compact" above, admits one thread at a
+ * time. With {@code true} on the diagonal and {@code false} everywhere else, this behaves like
+ * {@code Rooms}.
+ * <p>
+ * Threads are admitted in arrival order, except that a thread may pass waiting threads that are
+ * compatible with it. A thread never passes an earlier waiter that it conflicts with, so no room
+ * starves: each waiter only waits for the occupants that were already there, or that it let pass.
+ * <p>
+ * When no thread is waiting, entering and exiting take no lock. An entering thread adds itself to
+ * its room's occupant count and then checks the counts of the rooms that conflict with it, so
+ * threads in compatible rooms only ever touch their own rooms' counters. As soon as a thread has
+ * to wait, though, entries and exits go through a lock until the waiters have been let in, and
+ * waiting threads park right away. Under contention, that is no cheaper than a
+ * {@code ReentrantReadWriteLock}, and this class has none of the options of {@code Rooms}: there
+ * are no wait strategies, no timed, interruptible or asynchronous entry, and no striping or
+ * metrics. It pays off when compatible rooms would otherwise have to take turns, and conflicts
+ * are rare enough that threads seldom wait.
+ */
+public class CompatibleRooms {
+
+    private final boolean[][] compatible;
+
+    /**
+     * The rooms that conflict with each room, not counting the room itself.
+     */
+    private final int[][] conflicts;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The number of threads in each room, including threads that are checking whether they may
+     * stay; see {@link #tryFastEnter(int)}.
+     */
+    private final AtomicLong[] occupants;
+
+    /**
+     * The number of threads that are waiting, or that hold {@link #lock} while deciding whether to
+     * wait. While it's positive, every entry and exit takes the lock.
+     */
+    private final AtomicLong waiting = new PaddedAtomicLong();
+
+    /**
+     * The threads waiting to enter, in arrival order. Guarded by {@link #lock}.
+     */
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+    private final Room[] rooms;
+
+    /**
+     * Creates rooms with the given compatibility matrix, where {@code compatible[i][j]} is true iff
+     * rooms {@code i} and {@code j} may be occupied at the same time.
+     *
+     * @param compatible  a square, symmetric matrix with one row per room
+     * @throws IllegalArgumentException if {@code compatible} isn't square and symmetric
+     */
+    public CompatibleRooms(boolean[][] compatible) {
+        int n = compatible.length;
+        this.compatible = new boolean[n][];
+        for (int i = 0; i < n; i++) {
+            if (compatible[i].length != n) {
+                throw new IllegalArgumentException(n + " rooms, but row " + i + " has "
+                        + compatible[i].length + " columns");
+            }
+            this.compatible[i] = compatible[i].clone();
+        }
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < i; j++) {
+                if (compatible[i][j] != compatible[j][i]) {
+                    throw new IllegalArgumentException("not symmetric: rooms " + i + " and " + j);
+                }
+            }
+        }
+        conflicts = new int[n][];
+        occupants = new AtomicLong[n];
+        rooms = new Room[n];
+        for (int i = 0; i < n; i++) {
+            int count = 0;
+            int[] row = new int[n];
+            for (int j = 0; j < n; j++) {
+                if (j != i && !compatible[i][j]) {
+                    row[count++] = j;
+                }
+            }
+            conflicts[i] = Arrays.copyOf(row, count);
+            occupants[i] = new PaddedAtomicLong();
+            rooms[i] = new Room(i);
+        }
+    }
+
+    /**
+     * Returns the number of rooms.
+     *
+     * @return the number of rooms
+     */
+    public int roomCount() {
+        return rooms.length;
+    }
+
+    /**
+     * Waits until {@code room} can be entered, which is once every occupied room is compatible with
+     * it, and no earlier waiter conflicts with it. See {@link Rooms#enter(int)}.
+     * <p>
+     * Interrupting the waiting thread does not stop the wait, but its interrupt status is still
+     * set when this returns.
+     *
+     * @param room  the room to enter
+     * @return the room that was entered
+     * @throws IndexOutOfBoundsException if {@code room} is out of range
+     */
+    public Room enter(int room) {
+        Room r = rooms[room];
+        if (tryFastEnter(room)) {
+            return r;
+        }
+        Waiter w;
+        lock.lock();
+        try {
+            if (tryLockedEnter(room)) {
+                return r;
+            }
+            w = new Waiter(room);
+            waiters.add(w);
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (!w.granted) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return r;
+    }
+
+    /**
+     * Enters {@code room} only if it can be entered right away. See {@link Rooms#tryEnter(int)}.
+     *
+     * @param room  the room to enter
+     * @return the room that was entered, or {@code null} if it could not be entered right away
+     * @throws IndexOutOfBoundsException if {@code room} is out of range
+     */
+    public Room tryEnter(int room) {
+        Room r = rooms[room];
+        if (tryFastEnter(room)) {
+            return r;
+        }
+        lock.lock();
+        try {
+            if (tryLockedEnter(room)) {
+                return r;
+            }
+            waiting.decrementAndGet();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enters {@code room} without the lock, if nobody is waiting and no conflicting room is
+     * occupied, returning true iff it did.
+     */
+    private boolean tryFastEnter(int room) {
+        if (waiting.get() != 0) {
+            return false;
+        }
+        // We count ourselves in before we check the other rooms, and a thread in a conflicting
+        // room does the same, so at least one of us sees the other. A thread that is about to
+        // wait, or to let waiters in, counts itself in `waiting` first, so we see it, too.
+        long mine = occupants[room].incrementAndGet();
+        if (waiting.get() == 0 && (mine == 1 || compatible[room][room])) {
+            boolean clear = true;
+            for (int other : conflicts[room]) {
+                if (occupants[other].get() != 0) {
+                    clear = false;
+                    break;
+                }
+            }
+            if (clear) {
+                return true;
+            }
+        }
+        exit(room);     // someone may have seen us, and be waiting for us to leave
+        return false;
+    }
+
+    /**
+     * Counts the current thread in {@link #waiting}, and then enters {@code room} if it can,
+     * returning true iff it did. If it didn't, the thread is still counted in {@code waiting}.
+     * Must hold {@link #lock}.
+     */
+    private boolean tryLockedEnter(int room) {
+        waiting.incrementAndGet();
+        if (canEnter(room, null)) {
+            occupants[room].incrementAndGet();
+            waiting.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true iff {@code room} is compatible with every occupied room, and with every waiter
+     * before {@code self} (or every waiter, if {@code self} is null). Must hold {@link #lock}.
+     */
+    private boolean canEnter(int room, Waiter self) {
+        boolean[] row = compatible[room];
+        for (int other = 0; other < occupants.length; other++) {
+            if (!row[other] && occupants[other].get() > 0) {
+                return false;
+            }
+        }
+        for (Waiter w : waiters) {
+            if (w == self) {
+                break;
+            }
+            if (!row[w.room]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Exits {@code room}, and admits the waiters that can enter now.
+     */
+    private void exit(int room) {
+        long left = occupants[room].decrementAndGet();
+        if (left < 0) {
+            occupants[room].incrementAndGet();
+            throw new IllegalStateException("room " + room + " exited more times than it was"
+                    + " entered");
+        }
+        // A thread that is about to wait counts itself in `waiting` before it checks the rooms,
+        // so either it sees that we're gone, or we see it here.
+        if (waiting.get() == 0 || left > 0 && compatible[room][room]) {
+            return;     // nobody who was waiting for this room can enter yet
+        }
+        lock.lock();
+        try {
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                Waiter w = it.next();
+                if (canEnter(w.room, w)) {
+                    it.remove();
+                    occupants[w.room].incrementAndGet();
+                    waiting.decrementAndGet();
+                    w.granted = true;
+                    LockSupport.unpark(w.thread);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A room of {@link CompatibleRooms}. The only meaningful operation is to {@link #exit()} it.
+     */
+    public final class Room implements AutoCloseable {
+
+        private final int index;
+
+        private Room(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Exits this room. <b>This method (or {@link #exit()}) must be called exactly once!</b>
+         */
+        @Override
+        public void close() {
+            exit();
+        }
+
+        /**
+         * Exits this room. <b>This method (or {@link #close()}) must be called exactly once!</b>
+         *
+         * @throws IllegalStateException if the room has no occupants
+         */
+        public void exit() {
+            CompatibleRooms.this.exit(index);
+        }
+    }
+
+    private static final class Waiter {
+
+        final Thread thread = Thread.currentThread();
+        final int room;
+        volatile boolean granted;
+
+        Waiter(int room) {
+            this.room = room;
+        }
+    }
+}
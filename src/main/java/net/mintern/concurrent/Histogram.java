@@ -0,0 +1,160 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the distribution of a non-negative quantity, such as a wait time in nanoseconds.
+ * Values are counted in power-of-two buckets: bucket {@code 0} holds the zeros, and bucket
+ * {@code i > 0} holds the values from {@code 2^(i-1)} to {@code 2^i - 1}. Percentiles are therefore
+ * accurate to within a factor of two, which is plenty for spotting starvation and tuning, and it
+ * keeps recording down to a couple of uncontended additions.
+ */
+public final class Histogram {
+
+    /**
+     * The number of buckets.
+     */
+    public static final int BUCKETS = 65;
+
+    private final long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Histogram(long[] buckets, long sum, long max) {
+        this.buckets = buckets;
+        long count = 0;
+        for (long b : buckets) {
+            count += b;
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the number of values
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Returns the sum of the values recorded.
+     *
+     * @return the sum of the values
+     */
+    public long sum() {
+        return sum;
+    }
+
+    /**
+     * Returns the largest value recorded, or {@code 0} if there are none.
+     *
+     * @return the largest value
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the values recorded, or {@code 0} if there are none.
+     *
+     * @return the mean
+     */
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns an upper bound on the {@code percentile}th percentile of the values recorded: the
+     * largest value that the bucket holding that percentile could hold, or the largest value
+     * recorded, whichever is less.
+     *
+     * @param percentile  the percentile, from {@code 0} to {@code 100}
+     * @return an upper bound on the percentile, or {@code 0} if there are no values
+     * @throws IllegalArgumentException if {@code percentile} is out of range
+     */
+    public long percentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("percentile out of range: " + percentile);
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of values recorded in bucket {@code i}.
+     *
+     * @param i  the bucket
+     * @return the number of values in the bucket
+     * @throws IndexOutOfBoundsException unless {@code 0 <= i < BUCKETS}
+     */
+    public long bucket(int i) {
+        return buckets[i];
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + Math.round(mean()) + " p50=" + percentile(50)
+                + " p99=" + percentile(99) + " max=" + max;
+    }
+
+    private static int bucketOf(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * Records values into a {@link Histogram}. Recording threads mostly touch cells of their own,
+     * so they don't contend with each other.
+     */
+    static final class Recorder {
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Recorder() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records {@code value}, treating negative values as {@code 0}.
+         */
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[bucketOf(value)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Returns the values recorded so far. Values recorded concurrently may be partly counted.
+         */
+        Histogram snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return new Histogram(counts, sum.sum(), max.get());
+        }
+    }
+}
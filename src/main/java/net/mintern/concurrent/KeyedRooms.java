@@ -0,0 +1,165 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import net.mintern.concurrent.Rooms.Room;
+
+/**
+ * {@link Rooms} for each of many keys, such as the partitions of a data set. Each key gets room
+ * semantics of its own: entering room {@code 0} for one key excludes room {@code 1} for the same
+ * key, but not for other keys.
+ * <pre>{@code
+ *  KeyedRooms<String> rooms = new KeyedRooms<>(1024, () -> new Rooms(2));
+ *  try (Room room = rooms.enter(partition, READ)) {
+ *      // Read the partition while it can't be written.
+ *  }
+ * }</pre>
+ * <p>
+ * Keys are hashed to a fixed number of shards, and each shard has its own {@code Rooms}, which is
+ * created the first time one of its keys is used. Keys that share a shard share its rooms, so they
+ * exclude each other as if they were the same key; with enough shards, that's rare, and keys in
+ * different shards never touch the same state. A shard's rooms are created by a factory, so each
+ * shard can have its own scheduling policy and other options, and they are never removed.
+ * <p>
+ * Because of that, a thread that is in a room for one key must not enter a room for another key.
+ * If the two keys share a shard, the second entry waits for the thread to leave the first room,
+ * which it never does; with {@linkplain Rooms.Builder#reentrant(boolean) reentrant} rooms, it throws
+ * {@link IllegalStateException} instead. Which keys share a shard depends on their hash codes and
+ * the number of shards, so this can't be ruled out for any pair of keys. A thread that needs
+ * several keys at once should use {@link #rooms(Object)} to find their shards and enter each
+ * shard's rooms once.
+ * <p>
+ * Every shard that has been used keeps its own {@code Rooms}, which takes about a kilobyte per
+ * room with the default options, so the example above holds about 2 MB once all of its shards
+ * are in use. Sharding already spreads threads across counters, so there's rarely a reason to
+ * give a shard's rooms more than the default one stripe (see
+ * {@link Rooms.Builder#stripes(int)}); each extra stripe costs another 384 bytes per room, in
+ * every shard.
+ *
+ * @param <K> the type of keys
+ */
+public class KeyedRooms<K> {
+
+    private final AtomicReferenceArray<Rooms> shards;
+    private final int mask;
+    private final Supplier<Rooms> factory;
+
+    /**
+     * Creates keyed rooms with at least {@code shards} shards, each of which uses rooms made by
+     * {@code factory}. The number of shards is rounded up to a power of two.
+     *
+     * @param shards   the minimum number of shards
+     * @param factory  makes the rooms of each shard, which must all have the same number of rooms;
+     *                 called at most once per shard, but possibly from several threads at once, in
+     *                 which case all but one of the results are discarded
+     * @throws IllegalArgumentException if {@code shards} is not positive, or above {@code 2^30}
+     */
+    public KeyedRooms(int shards, Supplier<Rooms> factory) {
+        if (shards <= 0 || shards > 1 << 30) {
+            throw new IllegalArgumentException("shards out of range: " + shards);
+        }
+        if (factory == null) {
+            throw new NullPointerException("factory");
+        }
+        int count = shards == 1 ? 1 : Integer.highestOneBit(shards - 1) << 1;
+        this.shards = new AtomicReferenceArray<>(count);
+        this.mask = count - 1;
+        this.factory = factory;
+    }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int shards() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the rooms of {@code key}'s shard, creating them if needed.
+     *
+     * @param key  the key
+     * @return the rooms that {@code key} uses
+     */
+    public Rooms rooms(K key) {
+        int h = key.hashCode();
+        int shard = (h ^ (h >>> 16)) & mask;
+        Rooms rooms = shards.get(shard);
+        if (rooms == null) {
+            Rooms created = factory.get();
+            if (created == null) {
+                throw new NullPointerException("factory returned null");
+            }
+            rooms = shards.compareAndSet(shard, null, created) ? created : shards.get(shard);
+        }
+        return rooms;
+    }
+
+    /**
+     * Enters {@code room} for {@code key}. See {@link Rooms#enter(int)}. The current thread must
+     * not be in a room for any other key (see above).
+     *
+     * @param key   the key
+     * @param room  the room to enter
+     * @return the room that was entered
+     */
+    public Room enter(K key, int room) {
+        return rooms(key).enter(room);
+    }
+
+    /**
+     * Enters {@code room} for {@code key} only if it can be entered right away. See
+     * {@link Rooms#tryEnter(int)}.
+     *
+     * @param key   the key
+     * @param room  the room to enter
+     * @return the room that was entered, or {@code null} if it could not be entered right away
+     */
+    public Room tryEnter(K key, int room) {
+        return rooms(key).tryEnter(room);
+    }
+
+    /**
+     * Waits up to {@code timeout} to enter {@code room} for {@code key}. See
+     * {@link Rooms#tryEnter(int, long, TimeUnit)}.
+     *
+     * @param key      the key
+     * @param room     the room to enter
+     * @param timeout  the maximum time to wait
+     * @param unit     the unit of {@code timeout}
+     * @return the room that was entered, or {@code null} if the timeout elapsed first
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public Room tryEnter(K key, int room, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return rooms(key).tryEnter(room, timeout, unit);
+    }
+
+    /**
+     * Enters {@code room} for {@code key}, unless the thread is interrupted first. See
+     * {@link Rooms#enterInterruptibly(int)}.
+     *
+     * @param key   the key
+     * @param room  the room to enter
+     * @return the room that was entered
+     * @throws InterruptedException if the current thread is interrupted while waiting
+     */
+    public Room enterInterruptibly(K key, int room) throws InterruptedException {
+        return rooms(key).enterInterruptibly(room);
+    }
+
+    /**
+     * Enters {@code room} for {@code key} without waiting. See {@link Rooms#enterAsync(int)}.
+     *
+     * @param key   the key
+     * @param room  the room to enter
+     * @return a future that completes with the room once it has been entered
+     */
+    public CompletableFuture<Room> enterAsync(K key, int room) {
+        return rooms(key).enterAsync(room);
+    }
+}
@@ -0,0 +1,27 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link AtomicLong} followed by enough padding that no other heap object can share its cache
+ * line (or the adjacent line, which many processors prefetch as a pair). Use it for counters that
+ * are written by many threads, so that those writes don't evict unrelated data from other cores'
+ * caches, and vice versa.
+ * <p>
+ * The JVM lays out superclass fields before subclass fields, so the padding always follows the
+ * value. The value is protected on the other side by the object header and by the trailing
+ * padding of whatever precedes it; counters allocated one after another are therefore isolated
+ * from each other.
+ */
+@SuppressWarnings("serial")
+class PaddedAtomicLong extends AtomicLong {
+
+    long p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+
+    PaddedAtomicLong() {
+    }
+
+    PaddedAtomicLong(long initialValue) {
+        super(initialValue);
+    }
+}
@@ -0,0 +1,162 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+import net.mintern.concurrent.Rooms.Room;
+
+/**
+ * Runs tasks inside {@link Rooms}, using a pool of worker threads instead of the submitting
+ * threads. Each task is submitted to a room, and it runs while that room is entered:
+ * <pre>{@code
+ *  RoomExecutor executor = new RoomExecutor(new Rooms(2), Executors.newFixedThreadPool(8));
+ *  executor.execute(0, () -> workUnits.incrementAndGet());
+ *  CompletableFuture<Integer> units = executor.submit(1, () -> workUnits.get());
+ * }</pre>
+ * <p>
+ * A submitted task holds a ticket for its room, but no thread waits with it. When the room becomes
+ * active, every task submitted to it so far is handed to the workers at once, and they run in
+ * parallel. Tasks that arrive while another room is active therefore pile up into a single batch,
+ * and the cost of switching rooms is shared by all of them.
+ * <p>
+ * The workers are only used to run tasks, so they must not be shut down while tasks are pending.
+ * If they reject a task anyway, the task runs in the thread that let its batch into the room
+ * (see {@link Rooms#enterAsync(int, Executor)}).
+ */
+public class RoomExecutor {
+
+    private final Rooms rooms;
+    private final Executor workers;
+
+    /**
+     * Creates an executor that runs tasks in {@code rooms} using {@code workers}. Threads may still
+     * enter {@code rooms} directly; they are batched along with the tasks.
+     *
+     * @param rooms    the rooms to run tasks in
+     * @param workers  the threads to run tasks on
+     */
+    public RoomExecutor(Rooms rooms, Executor workers) {
+        if (rooms == null) {
+            throw new NullPointerException("rooms");
+        }
+        if (workers == null) {
+            throw new NullPointerException("workers");
+        }
+        this.rooms = rooms;
+        this.workers = workers;
+    }
+
+    /**
+     * Returns the rooms that tasks run in.
+     *
+     * @return the rooms
+     */
+    public Rooms rooms() {
+        return rooms;
+    }
+
+    /**
+     * Runs {@code task} in {@code room}.
+     *
+     * @param room  the room to run the task in
+     * @param task  the task to run
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@link #rooms()}
+     */
+    public void execute(int room, Runnable task) {
+        submit(room, task);
+    }
+
+    /**
+     * Runs {@code task} in {@code room}. Cancelling the returned future before the room is entered
+     * withdraws its ticket, and the task never runs.
+     *
+     * @param room  the room to run the task in
+     * @param task  the task to run
+     * @return a future that completes when the task finishes
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@link #rooms()}
+     */
+    public CompletableFuture<Void> submit(int room, final Runnable task) {
+        return submit(room, new Callable<Void>() {
+            @Override
+            public Void call() {
+                task.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Calls {@code task} in {@code room}. Cancelling the returned future before the room is entered
+     * withdraws its ticket, and the task never runs.
+     *
+     * @param <T>   the task's result type
+     * @param room  the room to call the task in
+     * @param task  the task to call
+     * @return a future that completes with the task's result
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@link #rooms()}
+     */
+    public <T> CompletableFuture<T> submit(int room, Callable<T> task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        TaskFuture<T> future = new TaskFuture<>(rooms.enterAsync(room, workers), task);
+        if (future.entry.isDone()) {
+            // We entered right away, in this thread. The task still belongs on a worker.
+            try {
+                workers.execute(future);
+            } catch (RejectedExecutionException e) {
+                future.run();
+            }
+        } else {
+            future.entry.whenComplete(future);
+        }
+        return future;
+    }
+
+    /**
+     * The future returned by {@link #submit(int, Callable)}, which also runs its task once the
+     * room has been entered.
+     */
+    private static final class TaskFuture<T> extends CompletableFuture<T>
+            implements BiConsumer<Room, Throwable>, Runnable {
+
+        final CompletableFuture<Room> entry;
+        final Callable<T> task;
+
+        TaskFuture(CompletableFuture<Room> entry, Callable<T> task) {
+            this.entry = entry;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            entry.whenComplete(this);
+        }
+
+        @Override
+        public void accept(Room room, Throwable entryFailure) {
+            if (room == null) {
+                // The entry was cancelled, which only we do.
+                super.cancel(false);
+                return;
+            }
+            T result;
+            try (Room r = room) {
+                result = task.call();
+            } catch (Throwable e) {
+                completeExceptionally(e);
+                return;
+            }
+            // Our dependents may run right away, so we only complete once we're out of the room.
+            complete(result);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return entry.cancel(mayInterruptIfRunning) || isCancelled();
+        }
+    }
+}
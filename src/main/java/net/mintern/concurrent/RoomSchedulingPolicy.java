@@ -0,0 +1,284 @@
+package net.mintern.concurrent;
+
+import java.util.Arrays;
+
+/**
+ * Chooses which room becomes active when the active room's batch ends. {@link Rooms} calls
+ * {@link #nextRoom(int, Backlog)} each time the last thread exits the active room, and then grants
+ * entry to every thread waiting for the chosen room.
+ * <p>
+ * The built-in policies are:
+ * <ul>
+ * <li>{@link #roundRobin()}, which gives every room with waiters a turn in cyclic order. This is
+ * the default, and it never starves a room.
+ * <li>{@link #mostWaitersFirst()}, which picks the room with the longest backlog, so that each
+ * switch lets in as many threads as possible.
+ * <li>{@link #weightedRoundRobin(int...)}, which is round-robin where a room may keep its turn for
+ * several batches in a row.
+ * <li>{@link #priority(int, int...)}, which prefers higher-priority rooms, while aging keeps the
+ * others from starving.
+ * </ul>
+ * <p>
+ * {@code Rooms} never calls a policy from two threads at once, and each call happens-before the
+ * next, so a policy may keep plain mutable state. A policy with state must not be shared between
+ * {@code Rooms} instances, though; the factory methods return a new instance whenever it matters.
+ */
+public abstract class RoomSchedulingPolicy {
+
+    private static final RoomSchedulingPolicy ROUND_ROBIN = new RoomSchedulingPolicy() {
+        @Override
+        public int nextRoom(int lastRoom, Backlog backlog) {
+            int n = backlog.rooms();
+            for (int k = 1; k <= n; k++) {
+                int room = (lastRoom + k) % n;
+                if (backlog.hasWaiting(room)) {
+                    return room;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "roundRobin";
+        }
+    };
+
+    private static final RoomSchedulingPolicy MOST_WAITERS_FIRST = new RoomSchedulingPolicy() {
+        @Override
+        public int nextRoom(int lastRoom, Backlog backlog) {
+            int n = backlog.rooms();
+            int best = -1;
+            long mostWaiting = 0;
+            for (int k = 1; k <= n; k++) {
+                int room = (lastRoom + k) % n;
+                long waiting = backlog.waiting(room);
+                if (waiting > mostWaiting) {
+                    best = room;
+                    mostWaiting = waiting;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            return "mostWaitersFirst";
+        }
+    };
+
+    /**
+     * Returns the room to make active next.
+     *
+     * @param lastRoom  the room whose batch just ended
+     * @param backlog   the rooms' waiting threads
+     * @return a room for which {@link Backlog#hasWaiting(int)} is true, or {@code -1} if there is
+     *         none; if the returned room has no waiters after all, {@link #roundRobin()} chooses
+     *         instead
+     */
+    public abstract int nextRoom(int lastRoom, Backlog backlog);
+
+    /**
+     * Checks that this policy can schedule {@code rooms} rooms.
+     *
+     * @throws IllegalArgumentException if it can't
+     */
+    void check(int rooms) {}
+
+    /**
+     * Returns the policy that makes the next room with waiters active, in cyclic order starting
+     * after the room whose batch just ended. This is the default.
+     *
+     * @return the round-robin policy
+     */
+    public static RoomSchedulingPolicy roundRobin() {
+        return ROUND_ROBIN;
+    }
+
+    /**
+     * Returns a policy that makes the room with the most waiting threads active, breaking ties in
+     * round-robin order. This minimizes the number of switches, but a room with few waiters can
+     * starve for as long as busier rooms keep filling up.
+     *
+     * @return the most-waiters-first policy
+     */
+    public static RoomSchedulingPolicy mostWaitersFirst() {
+        return MOST_WAITERS_FIRST;
+    }
+
+    /**
+     * Returns a policy that takes turns in round-robin order, where room {@code i}'s turn lasts for
+     * up to {@code weights[i]} consecutive batches, for as long as it has waiters. A room that
+     * sees 100 times the traffic of the others might have a weight of 100, so that it is not
+     * switched away from after every batch.
+     *
+     * @param weights  the number of consecutive batches for each room
+     * @return a new weighted round-robin policy
+     * @throws IllegalArgumentException if a weight is not positive
+     */
+    public static RoomSchedulingPolicy weightedRoundRobin(int... weights) {
+        for (int weight : weights) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weights must be positive: "
+                        + Arrays.toString(weights));
+            }
+        }
+        return new WeightedRoundRobin(weights.clone());
+    }
+
+    /**
+     * Returns a policy that makes the highest-priority room with waiters active, breaking ties in
+     * round-robin order. Each time a room with waiters is passed over, it ages; after
+     * {@code agingSwitches} switches, it competes as if its priority were one higher, and so on
+     * until it gets a turn. With {@link Integer#MAX_VALUE}, rooms effectively never age, and the
+     * lower-priority rooms can starve.
+     *
+     * @param agingSwitches  the number of times a room is passed over before its priority rises by
+     *                       one
+     * @param priorities     the priority of each room, where higher numbers go first
+     * @return a new priority policy
+     * @throws IllegalArgumentException if {@code agingSwitches} is not positive
+     */
+    public static RoomSchedulingPolicy priority(int agingSwitches, int... priorities) {
+        if (agingSwitches <= 0) {
+            throw new IllegalArgumentException("agingSwitches must be positive: " + agingSwitches);
+        }
+        return new Priority(agingSwitches, priorities.clone());
+    }
+
+    /**
+     * The state of the rooms' queues, as seen by a {@link RoomSchedulingPolicy}. Threads may take
+     * tickets at any time, so the counts may be out of date as soon as they are read.
+     */
+    public abstract static class Backlog {
+
+        Backlog() {}
+
+        /**
+         * Returns the number of rooms.
+         *
+         * @return the number of rooms
+         */
+        public abstract int rooms();
+
+        /**
+         * Returns true iff any thread is waiting for {@code room}. This is cheaper than
+         * {@code waiting(room) > 0}.
+         *
+         * @param room  the room
+         * @return true iff any thread is waiting for {@code room}
+         */
+        public abstract boolean hasWaiting(int room);
+
+        /**
+         * Returns the number of threads waiting for {@code room}.
+         *
+         * @param room  the room
+         * @return the number of threads waiting for {@code room}
+         */
+        public abstract long waiting(int room);
+    }
+
+    private static void checkLength(int rooms, int[] values, String name) {
+        if (values.length != rooms) {
+            throw new IllegalArgumentException(rooms + " rooms, but " + values.length + " " + name);
+        }
+    }
+
+    private static final class WeightedRoundRobin extends RoomSchedulingPolicy {
+
+        private final int[] weights;
+
+        /**
+         * The room whose turn it is, and the number of batches left in its turn.
+         */
+        private int current = -1;
+        private int remaining;
+
+        WeightedRoundRobin(int[] weights) {
+            this.weights = weights;
+        }
+
+        @Override
+        void check(int rooms) {
+            checkLength(rooms, weights, "weights");
+        }
+
+        @Override
+        public int nextRoom(int lastRoom, Backlog backlog) {
+            if (lastRoom != current) {
+                // The last room was entered without us (the rooms were idle), so its turn started
+                // then.
+                current = lastRoom;
+                remaining = weights[lastRoom] - 1;
+            }
+            if (remaining > 0 && backlog.hasWaiting(lastRoom)) {
+                remaining--;
+                return lastRoom;
+            }
+            int room = ROUND_ROBIN.nextRoom(lastRoom, backlog);
+            if (room >= 0) {
+                current = room;
+                remaining = weights[room] - 1;
+            }
+            return room;
+        }
+
+        @Override
+        public String toString() {
+            return "weightedRoundRobin" + Arrays.toString(weights);
+        }
+    }
+
+    private static final class Priority extends RoomSchedulingPolicy {
+
+        private final int agingSwitches;
+        private final int[] priorities;
+
+        /**
+         * The number of times each room has been passed over since its last turn.
+         */
+        private final int[] passedOver;
+
+        Priority(int agingSwitches, int[] priorities) {
+            this.agingSwitches = agingSwitches;
+            this.priorities = priorities;
+            this.passedOver = new int[priorities.length];
+        }
+
+        @Override
+        void check(int rooms) {
+            checkLength(rooms, priorities, "priorities");
+        }
+
+        @Override
+        public int nextRoom(int lastRoom, Backlog backlog) {
+            int n = backlog.rooms();
+            int best = -1;
+            long bestPriority = Long.MIN_VALUE;
+            for (int k = 1; k <= n; k++) {
+                int room = (lastRoom + k) % n;
+                if (backlog.hasWaiting(room)) {
+                    long priority = (long) priorities[room] + passedOver[room] / agingSwitches;
+                    if (priority > bestPriority) {
+                        best = room;
+                        bestPriority = priority;
+                    }
+                }
+            }
+            for (int room = 0; room < n; room++) {
+                if (room == best) {
+                    passedOver[room] = 0;
+                } else if (passedOver[room] < Integer.MAX_VALUE && backlog.hasWaiting(room)) {
+                    passedOver[room]++;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            return "priority(" + agingSwitches + ", " + Arrays.toString(priorities) + ")";
+        }
+    }
+}
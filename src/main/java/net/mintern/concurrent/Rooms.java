@@ -1,7 +1,24 @@
 package net.mintern.concurrent;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * This class provides {@link Object#wait()}-free, lock-free synchronization that allows exclusive
@@ -69,136 +86,2148 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p>
  * <b>It is very important that <i>either</i> {@link Room#exit()} <i>or</i> {@link Room#close()} is
  * called <i>exactly once</i> for each call to {@link #enter(int)}.
+ * <p>
+ * By default, a thread waiting to enter a room spins until it is allowed in. That is the right
+ * choice when room operations are short, but a waiter burns a full core for as long as another
+ * room stays active. If room operations can run for a long time, or if there are more threads than
+ * cores, construct the rooms with a spin time instead:
+ * <p>
+ * <pre>{@code
+ *  Rooms rooms = new Rooms(n, 20, TimeUnit.MICROSECONDS);
+ * }</pre>
+ * <p>
+ * A waiter then spins for at most that long before parking, and the last thread to exit the active
+ * room unparks the waiters that it lets in. Other trade-offs are available by passing a
+ * {@link WaitStrategy} to {@link #Rooms(int, WaitStrategy)}.
  *
  * @author Brandon Mintern
  */
 public class Rooms {
 
-    private static final boolean DEBUG = true;
+    /**
+     * The rooms, indexed by room number, with null for each retired room that has been released.
+     * Replaced (never modified) by {@link #addRoom()} and {@link #releaseIfDrained(Room)}, so a
+     * reader that needs a consistent view reads it once.
+     */
+    private volatile Room[] rooms;
+
+    /**
+     * The batch size limit and linger time of rooms added by {@link #addRoom()}.
+     */
+    private final long addedBatchLimit;
+    private final long addedLinger;
+
+    /**
+     * True iff any room is currently active. {@link ActiveState#room} is the active room.
+     */
+    private final ActiveState active = new ActiveState();
+
+    private final WaitStrategy waitStrategy;
+
+    private final RoomSchedulingPolicy schedulingPolicy;
+
+    /**
+     * The longest that a room may keep its turn, in nanoseconds, while other rooms are waiting;
+     * or {@code 0} if there's no limit. See {@link Builder#timeQuantum(long, TimeUnit)}.
+     */
+    private final long timeQuantum;
+
+    /**
+     * True iff threads may join the active room's batch. See {@link Builder#openDoor(boolean)}.
+     */
+    private final boolean openDoor;
+
+    /**
+     * With an open door, the number of tickets taken in all rooms that have not been granted yet,
+     * so that {@link #tryJoin(int, Room)} can tell whether anyone is waiting without looking at
+     * every room; otherwise null. Briefly off by the tickets that are being taken or granted.
+     */
+    private final AtomicLong ticketed;
+
+    /**
+     * What {@link #schedulingPolicy} sees of {@link #rooms}.
+     */
+    private final RoomSchedulingPolicy.Backlog backlog = new RoomSchedulingPolicy.Backlog() {
+        @Override
+        public int rooms() {
+            return rooms.length;
+        }
+
+        @Override
+        public boolean hasWaiting(int room) {
+            Room r = rooms[room];
+            return r != null && r.hasWaiting();
+        }
+
+        @Override
+        public long waiting(int room) {
+            Room r = rooms[room];
+            return r == null ? 0 : r.waiting();
+        }
+    };
+
+    /**
+     * The number of stripes that each room spreads its entry and exit counts across. See
+     * {@link Room#entries} and {@link Room#balances}.
+     */
+    private final int stripes;
+
+    /**
+     * True iff waiters may sit in {@link Room#waiters} without checking {@link #active} on their
+     * own, in which case the transition to no active room must check for them. That's the case
+     * when {@link #waitStrategy} may park waiters, and once {@link #enterAsync(int)} is used.
+     */
+    private volatile boolean queueing;
+
+    /**
+     * Records metrics, or null if they aren't being recorded. See
+     * {@link Builder#recordMetrics(boolean)}.
+     */
+    private final RoomsMetrics.Recorder metrics;
+
+    /**
+     * True iff Flight Recorder events are emitted. See {@link RoomsEvents}.
+     */
+    private final boolean events;
+
+    /**
+     * The room that each thread is in, and how many times it entered it, or null unless the rooms
+     * are reentrant. See {@link Builder#reentrant(boolean)}.
+     */
+    private final ThreadLocal<Hold> holds;
+
+    /**
+     * The room that each thread entered, and how many times, or null unless the rooms are in
+     * diagnostic mode. See {@link Builder#diagnostics(boolean)}.
+     */
+    private final ThreadLocal<Hold> owners;
+
+    /**
+     * The number of {@link Handle}s that each thread takes turns with. See
+     * {@link #enterHandle(int)}.
+     */
+    static final int HANDLES = 16;
+
+    /**
+     * Each thread's reusable {@link Handle}s. See {@link #enterHandle(int)}.
+     */
+    private final ThreadLocal<HandleRing> handles = new ThreadLocal<HandleRing>() {
+        @Override
+        protected HandleRing initialValue() {
+            return new HandleRing();
+        }
+    };
+
+    /**
+     * Creates a group of {@code n} rooms. {@link #enter(int)} can be called with values {@code i}
+     * where {@code 0 <= i < n}. Threads waiting to enter a room spin until they are allowed in.
+     *
+     * @param n  the number of rooms
+     */
+    public Rooms(int n) {
+        this(n, WaitStrategy.busySpin());
+    }
+
+    /**
+     * Creates a group of {@code n} rooms. {@link #enter(int)} can be called with values {@code i}
+     * where {@code 0 <= i < n}. Threads waiting to enter a room spin for up to {@code spinTime}
+     * and then park until they are allowed in.
+     *
+     * @param n         the number of rooms
+     * @param spinTime  the maximum time to spin before parking; {@code 0} to park right away
+     * @param unit      the unit of {@code spinTime}
+     * @throws IllegalArgumentException if {@code spinTime} is negative
+     */
+    public Rooms(int n, long spinTime, TimeUnit unit) {
+        this(n, WaitStrategy.spinThenPark(spinTime, unit));
+    }
+
+    /**
+     * Creates a group of {@code n} rooms. {@link #enter(int)} can be called with values {@code i}
+     * where {@code 0 <= i < n}. Threads waiting to enter a room wait according to
+     * {@code waitStrategy}.
+     *
+     * @param n             the number of rooms
+     * @param waitStrategy  determines how threads wait to enter a room
+     */
+    public Rooms(int n, WaitStrategy waitStrategy) {
+        this(n, builder().waitStrategy(waitStrategy));
+    }
+
+    /**
+     * Creates a group of {@code n} rooms whose entries and exits are counted across
+     * {@code stripes} stripes, which must be a power of two.
+     */
+    Rooms(int n, WaitStrategy waitStrategy, int stripes) {
+        this(n, builder().waitStrategy(waitStrategy).stripes(stripes));
+    }
+
+    private Rooms(int n, Builder builder) {
+        builder.schedulingPolicy.check(n);
+        if (builder.maxBatchSizes != null && builder.maxBatchSizes.length != n) {
+            throw new IllegalArgumentException(n + " rooms, but " + builder.maxBatchSizes.length
+                    + " batch sizes");
+        }
+        if (builder.lingers != null && builder.lingers.length != n) {
+            throw new IllegalArgumentException(n + " rooms, but " + builder.lingers.length
+                    + " linger times");
+        }
+        if (builder.capacities != null && builder.capacities.length != n) {
+            throw new IllegalArgumentException(n + " rooms, but " + builder.capacities.length
+                    + " capacities");
+        }
+        if (builder.exclusive != null) {
+            for (int room : builder.exclusive) {
+                if (room >= n) {
+                    throw new IllegalArgumentException(n + " rooms, but room " + room
+                            + " is exclusive");
+                }
+            }
+        }
+        this.stripes = builder.stripes;
+        this.metrics = builder.recordMetrics ? new RoomsMetrics.Recorder(n) : null;
+        this.events = builder.flightRecorderEvents;
+        this.holds = builder.reentrant ? newHolds() : null;
+        this.owners = builder.diagnostics ? newHolds() : null;
+        Room[] rooms = new Room[n];
+        for (int i = 0; i < n; i++) {
+            int capacity = builder.capacity(i);
+            boolean capped = capacity != Integer.MAX_VALUE;
+            rooms[i] = new Room(i, capped ? Math.min(builder.batchLimit(i), capacity)
+                    : builder.batchLimit(i), capped, builder.linger(i),
+                    metrics == null ? null : metrics.rooms[i]);
+        }
+        this.rooms = rooms;
+        this.addedBatchLimit = builder.maxBatchSize == Integer.MAX_VALUE ? Long.MAX_VALUE
+                : builder.maxBatchSize;
+        this.addedLinger = builder.linger;
+        this.waitStrategy = builder.waitStrategy;
+        this.schedulingPolicy = builder.schedulingPolicy;
+        this.timeQuantum = builder.timeQuantum;
+        this.openDoor = builder.openDoor;
+        this.ticketed = openDoor ? new PaddedAtomicLong() : null;
+        this.queueing = waitStrategy.mayPark();
+    }
+
+    /**
+     * Returns the number of rooms, including those that have been retired.
+     *
+     * @return the number of rooms
+     */
+    public int roomCount() {
+        return rooms.length;
+    }
+
+    /**
+     * Adds a room, which can be entered right away. The new room's number is the number of rooms
+     * before it was added, so room numbers are never reused. This can be called at any time,
+     * including while other rooms are active. It takes a lock and copies the rooms, so it's meant
+     * for rooms that come and go occasionally (say, one per tenant), not for every operation.
+     * <p>
+     * The new room has the batch size limit and linger time given to
+     * {@link Builder#maxBatchSize(int)} and {@link Builder#linger(long, TimeUnit)}, even if
+     * {@link Builder#maxBatchSizes(int...)} or {@link Builder#lingers(TimeUnit, long...)} set
+     * the limits of the original rooms. Its capacity is unlimited.
+     *
+     * @return the new room's number
+     * @throws IllegalArgumentException if the scheduling policy can't schedule another room, as is
+     *         the case for the policies that take a setting for each room
+     */
+    public synchronized int addRoom() {
+        Room[] old = rooms;
+        int n = old.length;
+        schedulingPolicy.check(n + 1);
+        Room[] added = Arrays.copyOf(old, n + 1);
+        added[n] = new Room(n, addedBatchLimit, false, addedLinger,
+                metrics == null ? null : metrics.addRoom());
+        rooms = added;
+        return n;
+    }
+
+    /**
+     * Retires {@code room}, so that it can't be entered anymore. Threads already in the room, or
+     * already waiting for it, still enter and exit it as usual (and a thread of reentrant rooms
+     * that is in it may enter it again), so this can be called at any time. Once the last of them exits, the room is released: its state and its metrics are
+     * dropped, and the other rooms skip its number with a null check. Retired rooms keep their
+     * numbers, though, and like {@link #addRoom()}, this takes a lock and copies the rooms, so
+     * it is not meant for every operation either.
+     *
+     * @param room  the room to retire
+     * @throws IllegalStateException if {@code room} has already been retired
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     */
+    public synchronized void retireRoom(int room) {
+        Room r = rooms[room];
+        if (r == null || r.state != Room.OPEN) {
+            throw new IllegalStateException("room " + room + " has already been retired");
+        }
+        r.state = Room.RETIRED;
+        releaseIfDrained(r);
+    }
+
+    /**
+     * Releases the retired room {@code r} if no thread is in it or waiting for it, by taking it out
+     * of {@link #rooms}. A thread that takes a ticket for {@code r} at the same time either makes
+     * this back off or finds out that its ticket is void; see {@link Room#takeTicket(int)}.
+     */
+    private synchronized void releaseIfDrained(Room r) {
+        if (r.state != Room.RETIRED) {
+            return;
+        }
+        r.state = Room.RELEASING;
+        if (r.pending.get() != 0 || r.hasWaiting()) {
+            r.state = Room.RETIRED;     // the last thread out tries again
+            return;
+        }
+        Room[] released = rooms.clone();
+        released[r.index] = null;
+        rooms = released;
+        if (metrics != null) {
+            metrics.release(r.index);
+        }
+        r.state = Room.RELEASED;
+    }
+
+    /**
+     * Returns {@code room}, which must not have been retired.
+     */
+    private Room room(int room) {
+        Room r = rooms[room];
+        if (r == null || r.state != Room.OPEN) {
+            throw new IllegalStateException("room " + room + " has been retired");
+        }
+        return r;
+    }
+
+    /**
+     * Returns a builder for rooms with options beyond those of the constructors:
+     * <pre>{@code
+     *  Rooms rooms = Rooms.builder()
+     *          .waitStrategy(WaitStrategy.spinThenPark(20, TimeUnit.MICROSECONDS))
+     *          .schedulingPolicy(RoomSchedulingPolicy.weightedRoundRobin(100, 1))
+     *          .build(2);
+     * }</pre>
+     *
+     * @return a new builder with the default options
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Waits until {@code room} can be entered. Intended to be used in a try-with-resources block:
+     * <pre>{@code
+     *  try (Room room = myRooms.enter(0)) {
+     *      // Perform activity while no other rooms can be entered.
+     *      // The `room` should not be used directly.
+     *  }
+     *  // other rooms can now be entered
+     * }</pre>
+     * <p>
+     * If a try-with-resources cannot be used, then {@link Room#exit()} can be called directly.
+     * <p>
+     * <b>It is very important that either {@code exit} or {@code close} is called exactly once for
+     * each call to {@code enter}!</b> If you are using a try-with-resources, then
+     * {@link Room#close()} will be called automatically.
+     * <p>
+     * Interrupting the waiting thread does not stop the wait, but its interrupt status is still
+     * set when this returns. Use {@link #enterInterruptibly(int)} to give up on interrupt.
+     *
+     * @param room  the room to enter, must be less than the number passed to the constructor
+     * @return the room that was entered
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired, or if the rooms are
+     *         reentrant and the current thread is in another room
+     */
+    public Room enter(int room) {
+        long since = since();
+        if (holds != null) {
+            Room held = reenter(room, true);
+            if (held != null) {
+                return held;
+            }
+        }
+        Room r = room(room);
+        if (openDoor && tryJoin(room, r)) {
+            return held(r.entered(since, 0));
+        }
+        int stripe = r.home();
+        long myTicket = r.takeTicket(stripe);               // get ticket for the room
+        if (myTicket > r.grant.get(stripe)) {               // wait until ticket is granted
+            await(room, r, stripe, myTicket, false, false, 0);
+        }
+        return held(r.entered(since, myTicket));
+    }
+
+    /**
+     * Just like {@link #enter(int)}, except that the room is exited by closing the returned
+     * handle, and closing it again does nothing. That makes it safe to close a handle early and
+     * still leave it in a try-with-resources block:
+     * <pre>{@code
+     *  try (Rooms.Handle h = myRooms.enterHandle(0)) {
+     *      // Perform activity while no other rooms can be entered.
+     *      h.close();  // let other rooms in before the slow part
+     *      // Perform activity that doesn't need the room.
+     *  }
+     * }</pre>
+     * <p>
+     * Each thread takes turns with a ring of {@value #HANDLES} handles, so entering this way
+     * allocates nothing once the ring is full. Each call returns the next closed handle in the
+     * ring, so closing a handle again does nothing until the thread has entered
+     * {@value #HANDLES} more times, after which the handle belongs to a new entry. A stray close
+     * of a handle that old exits that entry, so don't keep closed handles around. A thread that
+     * has every handle in its ring open at once gets a new handle that isn't reused.
+     *
+     * @param room  the room to enter, must be less than the number passed to the constructor
+     * @return the thread's handle, now open for {@code room}
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired, or if the rooms are
+     *         reentrant and the current thread is in another room
+     */
+    public Handle enterHandle(int room) {
+        Handle h = handles.get().next();
+        h.room = enter(room);
+        return h;
+    }
+
+    /**
+     * Enters {@code room} only if it can be entered right away, which is the case when no room is
+     * active. Entry is normally never granted in the middle of a batch, so this fails even if
+     * {@code room} itself is the active room, unless the rooms have an open door (see
+     * {@link Builder#openDoor(boolean)}). Returns {@code null} on failure, which a
+     * try-with-resources block ignores:
+     * <pre>{@code
+     *  try (Room room = myRooms.tryEnter(0)) {
+     *      if (room == null) {
+     *          // Take the degraded path.
+     *      } else {
+     *          // Perform activity while no other rooms can be entered.
+     *      }
+     *  }
+     * }</pre>
+     * <p>
+     * If this returns a {@code Room}, then {@link Room#exit()} or {@link Room#close()} must be
+     * called exactly once, just like after {@link #enter(int)}.
+     *
+     * @param room  the room to enter, must be less than the number passed to the constructor
+     * @return the room that was entered, or {@code null} if it could not be entered right away
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired
+     */
+    public Room tryEnter(int room) {
+        long since = since();
+        if (holds != null) {
+            Room held = reenter(room, false);
+            if (held != null) {
+                return held;
+            }
+        }
+        Room r = room(room);
+        if (active.get()) {
+            return openDoor && tryJoin(room, r) ? held(r.entered(since, 0)) : null;
+        }
+        if (!active.compareAndSet(false, true)) {
+            return null;
+        }
+        int stripe = r.home();
+        long myTicket;
+        try {
+            myTicket = r.takeTicket(stripe);
+        } catch (IllegalStateException e) {
+            // The room was released after we checked it, but we've already set `active`, so we
+            // hand it on just like the last thread out of a batch would.
+            setNextActiveRoom(room, false);
+            throw e;
+        }
+        activate(room, r);
+        if (myTicket <= r.grant.get(stripe) || !withdraw(r, null, stripe, myTicket)) {
+            return held(r.entered(since, myTicket));
+        }
+        return null;    // other tickets filled the batch
+    }
+
+    /**
+     * Just like {@link #enter(int)}, except that the wait can be interrupted. An interrupted
+     * thread withdraws its ticket, so giving up never holds up the room or the rooms that follow
+     * it. This makes it suitable for workers that must shut down promptly.
+     *
+     * @param room  the room to enter, must be less than the number passed to the constructor
+     * @return the room that was entered
+     * @throws InterruptedException if the current thread is interrupted while waiting, in which
+     *         case the room is not entered; if the room is entered at the same moment, then the
+     *         room is returned instead, with the thread's interrupt status still set
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired, or if the rooms are
+     *         reentrant and the current thread is in another room
+     */
+    public Room enterInterruptibly(int room) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long since = since();
+        if (holds != null) {
+            Room held = reenter(room, true);
+            if (held != null) {
+                return held;
+            }
+        }
+        Room r = room(room);
+        if (openDoor && tryJoin(room, r)) {
+            return held(r.entered(since, 0));
+        }
+        int stripe = r.home();
+        long myTicket = r.takeTicket(stripe);
+        if (myTicket <= r.grant.get(stripe) || await(room, r, stripe, myTicket, true, false, 0)) {
+            return held(r.entered(since, myTicket));
+        }
+        Thread.interrupted();
+        throw new InterruptedException();
+    }
+
+    /**
+     * Enters {@code room} without waiting. The returned future completes with the {@code Room}
+     * once it has been entered, so no thread spins or parks in the meantime:
+     * <pre>{@code
+     *  myRooms.enterAsync(0).thenAccept(room -> {
+     *      try {
+     *          // Perform activity while no other rooms can be entered.
+     *      } finally {
+     *          room.exit();
+     *      }
+     *  });
+     * }</pre>
+     * <p>
+     * If the room can be entered right away, the future is already complete. Otherwise, it is
+     * completed by the thread that grants entry, which is usually the last thread to exit the
+     * previously active room, so dependent actions that are not {@code async} run in that thread.
+     * If such an action exits the room and so lets another batch in, the futures of that batch
+     * are completed once the action returns, so dependent actions should not block waiting for
+     * them. Use {@link #enterAsync(int, Executor)} to keep dependent actions off of the granting
+     * thread.
+     * <p>
+     * {@link Room#exit()} or {@link Room#close()} must be called exactly once after the future
+     * completes. Cancelling the future before then withdraws the ticket, and the room is never
+     * entered. A successful {@code cancel} is the only way to complete the future with anything
+     * other than the {@code Room}.
+     *
+     * @param room  the room to enter, must be less than the number passed to the constructor
+     * @return a future that completes with the room once it has been entered
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired
+     */
+    public CompletableFuture<Room> enterAsync(int room) {
+        return enterAsync(room, null);
+    }
+
+    /**
+     * Just like {@link #enterAsync(int)}, except that if the future cannot be completed right away,
+     * the granting thread completes it by submitting a task to {@code executor}. If
+     * {@code executor} rejects the task, the granting thread completes the future itself.
+     *
+     * @param room      the room to enter, must be less than the number passed to the constructor
+     * @param executor  the executor that completes the future, or {@code null} for the granting
+     *                  thread
+     * @return a future that completes with the room once it has been entered
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired
+     */
+    public CompletableFuture<Room> enterAsync(int room, Executor executor) {
+        long since = since();
+        Room r = room(room);
+        if (openDoor && tryJoin(room, r)) {
+            return CompletableFuture.completedFuture(r.enteredAsync(since, 0));
+        }
+        int stripe = r.home();
+        long myTicket = r.takeTicket(stripe);
+        if (myTicket <= r.grant.get(stripe)) {
+            return CompletableFuture.completedFuture(r.enteredAsync(since, myTicket));
+        }
+        if (active.compareAndSet(false, true)) {
+            activate(room, r);
+            if (myTicket <= r.grant.get(stripe)) {
+                return CompletableFuture.completedFuture(r.enteredAsync(since, myTicket));
+            }
+        }
+        if (!queueing) {
+            queueing = true;
+        }
+        AsyncWaiter w = new AsyncWaiter(r, stripe, myTicket, executor, since);
+        r.waiters.add(w);
+        // Now that we are in the queue, the granting thread will find us, and so will the
+        // transition to no active room. We check both again, in case either one has come and
+        // gone.
+        if (myTicket <= r.grant.get(stripe)) {
+            if (w.tryGrant()) {
+                r.waiters.remove(w);
+                w.run();
+            }
+        } else if (active.compareAndSet(false, true)) {
+            // We can't activate our room: the granting thread may have gotten to us first, and
+            // then the batch ended, leaving us with nothing to enter with. Instead, we move on
+            // just like the last thread out would have, which grants us if there's anything to
+            // grant. We don't linger, since that would make us wait after all.
+            setNextActiveRoom(room, false);
+        }
+        return w.future;
+    }
+
+    /**
+     * Waits up to {@code timeout} for {@code room} to be entered. If the timeout elapses first,
+     * the ticket taken for {@code room} is withdrawn, so giving up never holds up the room or the
+     * rooms that follow it. Returns {@code null} on failure; see {@link #tryEnter(int)}.
+     * <p>
+     * If this returns a {@code Room}, then {@link Room#exit()} or {@link Room#close()} must be
+     * called exactly once, just like after {@link #enter(int)}.
+     *
+     * @param room     the room to enter, must be less than the number passed to the constructor
+     * @param timeout  the maximum time to wait
+     * @param unit     the unit of {@code timeout}
+     * @return the room that was entered, or {@code null} if the timeout elapsed first
+     * @throws InterruptedException if the current thread is interrupted while waiting, in which
+     *         case the room is not entered; if the room is entered at the same moment, then the
+     *         room is returned instead, with the thread's interrupt status still set
+     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * @throws IllegalStateException if {@code room} has been retired
+     */
+    public Room tryEnter(int room, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long since = since();
+        if (holds != null) {
+            Room held = reenter(room, false);
+            if (held != null) {
+                return held;
+            }
+        }
+        Room r = room(room);
+        if (openDoor && tryJoin(room, r)) {
+            return held(r.entered(since, 0));
+        }
+        int stripe = r.home();
+        long myTicket = r.takeTicket(stripe);
+        if (myTicket <= r.grant.get(stripe)
+                || await(room, r, stripe, myTicket, true, true, deadline)) {
+            return held(r.entered(since, myTicket));
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        return null;
+    }
+
+    /**
+     * Counts a nested entry into {@code room} if the current thread is already in it, returning
+     * the room iff it did. This comes before the check for retired rooms, since a thread that is
+     * in a room that has since been retired may still enter it again. Only used by reentrant
+     * rooms.
+     *
+     * @param unbounded  true iff the caller waits as long as it takes, rather than failing when
+     *                   the room can't be entered
+     * @throws IllegalStateException if {@code unbounded} and the current thread is in another
+     *         room
+     */
+    private Room reenter(int room, boolean unbounded) {
+        Hold h = holds.get();
+        if (h.room == null) {
+            return null;
+        }
+        if (h.room.index == room) {
+            h.depth++;
+            return h.room;
+        }
+        if (unbounded) {
+            throw new IllegalStateException("can't enter room " + room + " from room "
+                    + h.room.index + ", which would wait forever");
+        }
+        return null;
+    }
+
+    /**
+     * Records that the current thread is in {@code r}, if the rooms are reentrant or in diagnostic
+     * mode, and returns {@code r}.
+     */
+    private Room held(Room r) {
+        if (holds != null) {
+            Hold h = holds.get();
+            h.room = r;
+            h.depth = 1;
+        }
+        if (owners != null) {
+            Hold o = owners.get();
+            if (o.room == r) {
+                o.depth++;              // joined through an open door
+            } else {
+                o.room = r;
+                o.depth = 1;
+            }
+        }
+        return r;
+    }
+
+    private static ThreadLocal<Hold> newHolds() {
+        return new ThreadLocal<Hold>() {
+            @Override
+            protected Hold initialValue() {
+                return new Hold();
+            }
+        };
+    }
+
+    /**
+     * Returns the time at which an entry begins, if anything records it.
+     */
+    private long since() {
+        return metrics == null && !events ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Waits for {@code myTicket} to be granted. If {@code timed} and {@code deadline} passes, or if
+     * {@code interruptible} and the thread is interrupted, the ticket is withdrawn and this
+     * returns false. If the ticket is granted while it is being withdrawn, then this returns true
+     * and the room has been entered, even though the thread was interrupted.
+     */
+    private boolean await(int room, Room r, int stripe, long myTicket, boolean interruptible,
+            boolean timed, long deadline) {
+        long start = System.nanoTime();
+        Waiter w = null;
+        boolean interrupted = false;
+        try {
+            for (int i = 0; myTicket > r.grant.get(stripe); i = i < Integer.MAX_VALUE ? i + 1 : i) {
+                if (active.compareAndSet(false, true)) {    // while waiting, if no active room
+                    activate(room, r);                      // then make `room` the active room
+                    continue;                               // (our ticket may not fit the batch)
+                }
+                long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                if (remaining <= 0 || interruptible && Thread.currentThread().isInterrupted()) {
+                    return !withdraw(r, w, stripe, myTicket);
+                }
+                long parkNanos = waitStrategy.idle(i, start);
+                if (parkNanos < 0) {
+                    continue;
+                }
+                if (w == null) {
+                    // Once we are in the queue, a grant of our ticket unparks us, and so does a
+                    // transition to no active room (see setNextActiveRoom). We must check
+                    // everything again after joining the queue, and after waking.
+                    w = new Waiter(stripe, myTicket);
+                    r.waiters.add(w);
+                    continue;
+                }
+                if (parkNanos == 0 && !timed) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this,
+                            parkNanos == 0 ? remaining : Math.min(parkNanos, remaining));
+                }
+                if (!interruptible) {
+                    // park returns right away while interrupted, so clear it until we're done.
+                    interrupted |= Thread.interrupted();
+                }
+            }
+            // Our ticket was granted. If the granting thread hasn't gotten to our Waiter yet, we
+            // take it out of the queue ourselves.
+            if (w != null && w.tryGrant()) {
+                r.waiters.remove(w);
+            }
+            return true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Withdraws {@code myTicket}, returning false if it was granted before it could be withdrawn.
+     * A withdrawn ticket stays in the queue (as a cancelled {@link Waiter}) until the thread that
+     * grants it takes it back out of the batch; see {@link Room#releaseGranted()}.
+     */
+    private boolean withdraw(Room r, Waiter w, int stripe, long myTicket) {
+        if (w == null) {
+            // We must be in the queue before we can be sure that the granting thread will see our
+            // cancellation.
+            w = new Waiter(stripe, myTicket);
+            r.waiters.add(w);
+            if (myTicket <= r.grant.get(stripe)) {
+                if (w.tryGrant()) {
+                    r.waiters.remove(w);
+                }
+                return false;
+            }
+        }
+        return w.tryCancel();
+    }
+
+    /**
+     * Joins {@code room}'s current batch without taking a ticket, if {@code room} is active and no
+     * thread is waiting with a ticket. See {@link Builder#openDoor(boolean)}.
+     */
+    private boolean tryJoin(int room, Room r) {
+        // A batch is in progress exactly when its room has pending units, so adding a unit while
+        // there are some extends the batch by one occupant.
+        long p = r.pending.get();
+        if (p <= 0 || r.capped || ticketed.get() > 0) {
+            return false;
+        }
+        do {
+            if (r.pending.compareAndSet(p, p + 1)) {
+                return true;
+            }
+        } while ((p = r.pending.get()) > 0);
+        return false;
+    }
+
+    /**
+     * Makes {@code room} the active room and grants entry to its tickets. The caller must have just
+     * set {@link #active}, and must hold a ticket for {@code room} that has not been granted. If
+     * the room's batch size is limited, the caller's ticket may not be part of the new batch.
+     */
+    private void activate(int room, Room r) {
+        if (timeQuantum > 0) {
+            active.turnStart = System.nanoTime();
+        }
+        if (metrics != null && room != active.room) {
+            metrics.switches.increment();
+        }
+        if (events) {
+            RoomsEvents.switched(-1, room);
+        }
+        active.room = room;                 // make `room` the active room
+        if (r.grantWaiting()) {             // grant tickets to enter room `room`
+            // The batch didn't include our ticket, and every ticket that it did include had been
+            // withdrawn, so it's already over. Like the rest of activation, this doesn't linger:
+            // the caller may be entering asynchronously.
+            setNextActiveRoom(room, false);
+            r.releaseIfRetired();
+        }
+    }
+
+    /**
+     * The room that has been entered. The only meaningful operation is to {@link #exit()} the room.
+     * All calls to {@link RoomLock#enter(int)} with the same value {@code i} will return the same
+     * {@code Room} object. Users can {@code synchronize} on that object for more fine-grained
+     * locking.
+     */
+    public class Room implements AutoCloseable {
+
+        // Entrants write `entries`, waiters spin on `grant`, and occupants write `pending` and
+        // `balances`, so each counter is padded to its own cache line. With more than one stripe,
+        // each thread takes its tickets from its home stripe, so that threads entering the same
+        // room at the same time don't all contend on one counter.
+
+        /**
+         * Indicates the number of entries into this room through each stripe. Each attempt to
+         * enter the room grabs a new {@code entries} value from its thread's home stripe (which we
+         * call a <i>ticket</i>). See {@link #grant}.
+         */
+        private final Stripes entries = new Stripes(stripes);
+
+        /**
+         * All tickets (see {@link #entries}) higher than their stripe's {@code grant} are waiting
+         * to execute.
+         */
+        private final Stripes grant = new Stripes(stripes);
+
+        /**
+         * The tickets of each stripe that {@link #grantWaiting()} is granting. Only used by the
+         * thread that is changing the active room.
+         */
+        private final long[] granting = new long[stripes];
+
+        // Each granted ticket is one unit of occupancy, and each exit uses up one unit; this room
+        // is still executing until every unit of its current batch has been used up. Units are
+        // held either in `pending` itself or in `balances`, and `pending` counts each stripe of
+        // `balances` that still has units as one more unit. That way, whoever takes the last unit
+        // of a stripe and whoever takes a unit directly from `pending` both decrement `pending`,
+        // and whoever takes it to zero was the last to exit.
+
+        /**
+         * The units of the current batch that are not in {@link #balances}, plus the number of
+         * stripes of {@code balances} that still hold units.
+         */
+        private final AtomicLong pending = new PaddedAtomicLong();
+
+        /**
+         * Per-stripe units of the current batch, or null if there is only one stripe. Each stripe
+         * gets a unit for each ticket that it granted, and each exit takes its unit from its
+         * thread's home stripe if it can, so an occupant normally exits through the same stripe
+         * that it entered through.
+         */
+        private final Stripes balances = stripes > 1 ? new Stripes(stripes) : null;
+
+        /**
+         * True iff the current batch's units are spread over {@link #balances}. Small batches
+         * keep all of their units in {@link #pending}.
+         */
+        private volatile boolean striped;
+
+        /**
+         * Waiters that the granting thread has to find: threads that are parked (or about to
+         * park), asynchronous entries, and withdrawn tickets.
+         */
+        private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The most tickets that {@link #grantWaiting()} grants at once: the smaller of the room's
+         * batch size limit and its capacity.
+         */
+        private final long maxBatchSize;
+
+        /**
+         * True iff this room has a capacity, so that no thread may join its batch. See
+         * {@link Builder#capacities(int...)}.
+         */
+        private final boolean capped;
+
+        /**
+         * The stripe that {@link #grantWaiting()} takes tickets from first when it can't grant
+         * them all. It rotates, so that no stripe's tickets always go last. Only used by the thread
+         * that is changing the active room.
+         */
+        private int firstStripe;
+
+        /**
+         * How long to wait for more tickets before granting a batch, in nanoseconds. See
+         * {@link Builder#linger(long, TimeUnit)}.
+         */
+        private final long linger;
+
+        /**
+         * Records this room's metrics, or null if they aren't being recorded.
+         */
+        private final RoomsMetrics.RoomRecorder recorder;
+
+        /**
+         * This room's index, for {@link RoomsEvents}.
+         */
+        private final int index;
+
+        // A room is OPEN until it is retired. Once a retired room has no occupants or waiters, it
+        // is RELEASED, passing through RELEASING while Rooms.releaseIfDrained checks it.
+        static final int OPEN = 0;
+        static final int RETIRED = 1;
+        static final int RELEASING = 2;
+        static final int RELEASED = 3;
+
+        /**
+         * Whether this room can still be entered. See {@link Rooms#retireRoom(int)}.
+         */
+        private volatile int state;
+
+        /**
+         * In diagnostic mode, the number of entries into this room that no thread owns, because
+         * they were made with {@link Rooms#enterAsync(int)}; otherwise null.
+         */
+        private final AtomicLong unowned = owners == null ? null : new AtomicLong();
+
+        /**
+         * The {@link System#nanoTime()} at which the current batch was granted, if there is a
+         * {@link #recorder}. Written before {@link #pending} is set, so the last one out sees it.
+         */
+        private long batchStart;
+
+        private Room(int index, long maxBatchSize, boolean capped, long linger,
+                RoomsMetrics.RoomRecorder recorder) {
+            this.index = index;
+            this.maxBatchSize = maxBatchSize;
+            this.capped = capped;
+            this.linger = linger;
+            this.recorder = recorder;
+        }
+
+        /**
+         * Exits this room. <b>This method (or {@link #exit()}) must be called exactly once!</b>.
+         *
+         * @throws IllegalStateException in diagnostic mode, if this exit doesn't match an entry;
+         *         see {@link Builder#diagnostics(boolean)}
+         */
+        @Override
+        public void close() {
+            exit();
+        }
+
+        /**
+         * Exits this room. <b>This method (or {@link #close()}) must be called exactly once!</b>.
+         *
+         * @throws IllegalStateException in diagnostic mode, if this exit doesn't match an entry;
+         *         see {@link Builder#diagnostics(boolean)}
+         */
+        public void exit() {
+            if (holds != null && !release()) {
+                return;                 // a nested exit
+            }
+            if (owners != null) {
+                disown();
+            }
+            // If we are the last of this batch to exit, activate the next room.
+            boolean last = countDown();
+            if (events) {
+                RoomsEvents.exited(index, last);
+            }
+            if (last) {
+                batchEnded();
+                setNextActiveRoom(active.room, true);
+                releaseIfRetired();
+            }
+        }
+
+        /**
+         * Takes an exit from this room out of the current thread's entries, or else out of the
+         * entries that no thread owns. Only used in diagnostic mode.
+         *
+         * @throws IllegalStateException if there's no such entry
+         */
+        private void disown() {
+            Hold o = owners.get();
+            if (o.room == this) {
+                if (--o.depth == 0) {
+                    o.room = null;
+                }
+                return;
+            }
+            for (long u; (u = unowned.get()) > 0;) {
+                if (unowned.compareAndSet(u, u - 1)) {
+                    return;
+                }
+            }
+            throw new IllegalStateException("room " + index + " exited more times than it was"
+                    + " entered, or by a thread that didn't enter it"
+                    + (o.room == null ? "" : " (this thread is in room " + o.room.index + ")"));
+        }
+
+        /**
+         * Records an asynchronous entry into this room, which no thread owns. See
+         * {@link #entered(long, long)}.
+         */
+        private Room enteredAsync(long since, long ticket) {
+            if (unowned != null) {
+                unowned.incrementAndGet();
+            }
+            return entered(since, ticket);
+        }
+
+        /**
+         * Counts an exit from this room against the current thread's entries, returning true
+         * iff it's the thread's last exit, or the thread doesn't hold this room (as after
+         * {@link Rooms#enterAsync(int)}), so that the exit uses up a unit of the batch. Only
+         * used by reentrant rooms.
+         */
+        private boolean release() {
+            Hold h = holds.get();
+            if (h.room != this) {
+                return true;
+            }
+            if (--h.depth > 0) {
+                return false;
+            }
+            h.room = null;
+            return true;
+        }
+
+        /**
+         * Records an entry into this room with {@code ticket} (or {@code 0} if it joined a batch)
+         * after a wait that began at {@code since}, and returns this room.
+         */
+        private Room entered(long since, long ticket) {
+            if (recorder != null || events) {
+                long waitTime = System.nanoTime() - since;
+                if (recorder != null) {
+                    recorder.waitTime.record(waitTime);
+                }
+                if (events) {
+                    RoomsEvents.entered(index, ticket, waitTime);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Records the end of the current batch.
+         */
+        private void batchEnded() {
+            if (recorder != null) {
+                recorder.holdTime.record(System.nanoTime() - batchStart);
+            }
+        }
+
+        /**
+         * Uses up one unit of the current batch, returning true iff it was the last one.
+         */
+        private boolean countDown() {
+            if (striped) {
+                // Prefer our home stripe, but take a unit from any stripe that has one left.
+                int home = balances.home();
+                for (int k = 0; k < stripes; k++) {
+                    int s = balances.next(home, k);
+                    for (long b; (b = balances.get(s)) > 0;) {
+                        if (balances.compareAndSet(s, b, b - 1)) {
+                            return b == 1 && pending.decrementAndGet() == 0;
+                        }
+                    }
+                }
+            }
+            return pending.decrementAndGet() == 0;
+        }
+
+        /**
+         * Takes a ticket from {@code stripe} and returns it.
+         *
+         * @throws IllegalStateException if this room was released before the ticket was taken
+         */
+        private long takeTicket(int stripe) {
+            long ticket = entries.incrementAndGet(stripe);
+            if (ticketed != null) {
+                ticketed.incrementAndGet();
+            }
+            if (state != OPEN) {
+                // This room was retired after we checked it. If releaseIfDrained saw our ticket,
+                // then it left the room alone, and we wait as usual. Otherwise, the room is gone,
+                // and nothing will ever grant the ticket.
+                int st;
+                while ((st = state) == RELEASING) {
+                    WaitStrategy.onSpinWait();
+                }
+                if (st == RELEASED) {
+                    if (ticketed != null) {
+                        ticketed.decrementAndGet();
+                    }
+                    throw new IllegalStateException("room " + index + " has been retired");
+                }
+            }
+            return ticket;
+        }
+
+        /**
+         * Releases this room if it has been retired and nobody is in it or waiting for it. Called
+         * whenever one of its batches ends.
+         */
+        private void releaseIfRetired() {
+            if (state == RETIRED) {
+                releaseIfDrained(this);
+            }
+        }
+
+        /**
+         * Returns the current thread's home stripe.
+         */
+        private int home() {
+            return stripes == 1 ? 0 : entries.home();
+        }
+
+        /**
+         * Returns true iff any ticket is waiting for a grant.
+         */
+        private boolean hasWaiting() {
+            for (int s = 0; s < stripes; s++) {
+                if (entries.get(s) > grant.get(s)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the number of tickets waiting for a grant.
+         */
+        private long waiting() {
+            long waiting = 0;
+            for (int s = 0; s < stripes; s++) {
+                waiting += Math.max(0, entries.get(s) - grant.get(s));
+            }
+            return waiting;
+        }
+
+        /**
+         * Spins for up to {@link #linger}, or until a full batch is waiting, so that more threads
+         * can take tickets for the batch that we're about to grant.
+         */
+        private void linger() {
+            // A virtual thread yields, so that the threads we're waiting for can have its carrier.
+            boolean virtual = WaitStrategy.isVirtual(Thread.currentThread());
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < linger && waiting() < maxBatchSize) {
+                if (virtual) {
+                    Thread.yield();
+                } else {
+                    WaitStrategy.onSpinWait();
+                }
+            }
+        }
+
+        /**
+         * Grants all tickets taken so far, up to {@link #maxBatchSize}, which starts a new batch,
+         * and unparks the newly-granted waiters. The previous batch must have ended. Returns true
+         * iff every ticket of the new batch had been withdrawn, in which case the new batch has
+         * already ended, too.
+         */
+        private boolean grantWaiting() {
+            long units = 0;
+            for (int s = 0; s < stripes; s++) {
+                granting[s] = entries.get(s);
+                units += granting[s] - grant.get(s);
+            }
+            if (units > maxBatchSize) {
+                // Each stripe's tickets are granted in order, but we have to choose how many to
+                // take from each stripe. The rest wait for a later batch.
+                long left = maxBatchSize;
+                for (int k = 0; k < stripes; k++) {
+                    int s = (firstStripe + k) & (stripes - 1);
+                    long take = Math.min(left, granting[s] - grant.get(s));
+                    granting[s] = grant.get(s) + take;
+                    left -= take;
+                }
+                firstStripe = (firstStripe + 1) & (stripes - 1);
+                units = maxBatchSize;
+            }
+            if (ticketed != null) {
+                ticketed.addAndGet(-units);
+            }
+            if (recorder != null) {
+                recorder.batchSize.record(units);
+                batchStart = System.nanoTime();
+            }
+            if (events) {
+                RoomsEvents.granted(index, units);
+            }
+            // Only spread the batch if there's at least one unit per stripe. Otherwise, there's
+            // little contention to avoid, and the extra decrement per stripe isn't worth it.
+            striped = balances != null && units >= stripes;
+            if (striped) {
+                int nonEmpty = 0;
+                for (int s = 0; s < stripes; s++) {
+                    long b = granting[s] - grant.get(s);
+                    balances.set(s, b);
+                    if (b > 0) {
+                        nonEmpty++;
+                    }
+                }
+                pending.set(nonEmpty);
+            } else {
+                pending.set(units);
+            }
+            for (int s = 0; s < stripes; s++) {
+                grant.set(s, granting[s]);  // publishes the units to the occupants of the batch
+            }
+            return releaseGranted();
+        }
+
+        /**
+         * Releases every queued waiter whose ticket has been granted, and takes each withdrawn
+         * ticket that has been granted back out of its batch. Returns true iff that ended the
+         * batch.
+         */
+        private boolean releaseGranted() {
+            if (waiters.isEmpty()) {
+                return false;
+            }
+            boolean ended = false;
+            List<AsyncWaiter> completing = null;
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                Waiter w = it.next();
+                if (w.ticket <= grant.get(w.stripe)) {
+                    it.remove();
+                    if (w.tryGrant()) {
+                        if (w.thread != null) {
+                            LockSupport.unpark(w.thread);
+                        } else {
+                            if (completing == null) {
+                                completing = new ArrayList<>();
+                            }
+                            completing.add((AsyncWaiter) w);
+                        }
+                    } else if (w.tryWithdraw()) {
+                        // The withdrawn ticket is part of the batch, so we exit on its behalf.
+                        ended |= countDown();
+                    }
+                }
+            }
+            // Completing a future may run arbitrary code, including an exit from this room, so we
+            // wait until we're done with the queue. The batch can't have ended if we have any.
+            if (completing != null) {
+                AsyncWaiter.completeAll(completing);
+            }
+            if (ended) {
+                batchEnded();
+            }
+            return ended;
+        }
+
+        /**
+         * Returns true iff a waiter is queued for a ticket that has not been granted.
+         */
+        private boolean hasQueuedWaiters() {
+            for (Waiter w : waiters) {
+                if (w.state == Waiter.WAITING && w.ticket > grant.get(w.stripe)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A thread waiting for a ticket, queued in {@link Room#waiters} so that the thread granting
+     * the ticket can find it. The waiting thread and the granting thread race to settle its state,
+     * which starts out {@link #WAITING}:
+     * <ul>
+     * <li>Whichever thread first sees that the ticket was granted moves it to {@link #GRANTED}. If
+     * that's the granting thread, it then unparks the waiting thread.
+     * <li>If the waiting thread gives up first, it moves it to {@link #CANCELLED}, and then the
+     * granting thread moves it to {@link #WITHDRAWN} and takes the ticket back out of the batch.
+     * </ul>
+     */
+    private static class Waiter {
+
+        static final int WAITING = 0;
+        static final int GRANTED = 1;
+        static final int CANCELLED = 2;
+        static final int WITHDRAWN = 3;
+
+        private static final AtomicIntegerFieldUpdater<Waiter> STATE
+                = AtomicIntegerFieldUpdater.newUpdater(Waiter.class, "state");
+
+        /**
+         * The waiting thread, or {@code null} for an {@link AsyncWaiter}.
+         */
+        final Thread thread;
+        final int stripe;
+        final long ticket;
+
+        volatile int state;
+
+        Waiter(int stripe, long ticket) {
+            this(Thread.currentThread(), stripe, ticket);
+        }
+
+        Waiter(Thread thread, int stripe, long ticket) {
+            this.thread = thread;
+            this.stripe = stripe;
+            this.ticket = ticket;
+        }
+
+        boolean tryGrant() {
+            return STATE.compareAndSet(this, WAITING, GRANTED);
+        }
+
+        boolean tryCancel() {
+            return STATE.compareAndSet(this, WAITING, CANCELLED);
+        }
+
+        boolean tryWithdraw() {
+            return STATE.compareAndSet(this, CANCELLED, WITHDRAWN);
+        }
+    }
+
+    /**
+     * A waiter for {@link #enterAsync(int)}. Instead of unparking a thread, the granting thread
+     * completes {@link #future}, using {@link #executor} if there is one.
+     */
+    private static final class AsyncWaiter extends Waiter implements Runnable {
+
+        /**
+         * The waiters that the current thread has yet to complete, or null if it isn't completing
+         * any. See {@link #completeAll(List)}.
+         */
+        private static final ThreadLocal<ArrayDeque<AsyncWaiter>> COMPLETING
+                = new ThreadLocal<>();
+
+        final Room room;
+        final Executor executor;
+        final RoomFuture future = new RoomFuture(this);
+
+        /**
+         * When the wait began, for {@link Room#enteredAsync(long, long)}.
+         */
+        final long since;
+
+        AsyncWaiter(Room room, int stripe, long ticket, Executor executor, long since) {
+            super(null, stripe, ticket);
+            this.room = room;
+            this.executor = executor;
+            this.since = since;
+        }
+
+        /**
+         * Completes each waiter's future, whose tickets must have been granted. A dependent
+         * action that exits its room may grant the next batch, and so complete more futures, in
+         * this same thread. Rather than recursing once per batch, a nested call only queues its
+         * waiters, and the outermost call completes them in turn.
+         */
+        static void completeAll(List<AsyncWaiter> waiters) {
+            ArrayDeque<AsyncWaiter> queue = COMPLETING.get();
+            if (queue != null) {
+                queue.addAll(waiters);
+                return;
+            }
+            queue = new ArrayDeque<>(waiters);
+            COMPLETING.set(queue);
+            try {
+                for (AsyncWaiter w; (w = queue.poll()) != null;) {
+                    w.complete();
+                }
+            } finally {
+                COMPLETING.remove();
+            }
+        }
+
+        /**
+         * Completes {@link #future}. The ticket must have been granted to this waiter.
+         */
+        void complete() {
+            if (executor != null) {
+                try {
+                    executor.execute(this);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    // The room has been entered, so someone has to find out. We do it ourselves.
+                }
+            }
+            run();
+        }
+
+        @Override
+        public void run() {
+            future.complete(room.enteredAsync(since, ticket));
+        }
+    }
+
+    /**
+     * The future returned by {@link #enterAsync(int)}. Cancelling it withdraws the ticket.
+     */
+    private static final class RoomFuture extends CompletableFuture<Room> {
+
+        private final Waiter waiter;
+
+        RoomFuture(Waiter waiter) {
+            this.waiter = waiter;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // If the ticket has been granted, then the room has been entered (or soon will be), and
+            // it's too late.
+            return waiter.tryCancel() ? super.cancel(mayInterruptIfRunning) : isCancelled();
+        }
+    }
+
+    /**
+     * An entry into a room, returned by {@link #enterHandle(int)}, which is exited by
+     * {@link #close()}. Unlike {@link Room#exit()}, closing a handle more than once is safe, as
+     * long as the thread hasn't reused the handle in the meantime: only the first call exits the
+     * room. A handle is meant to be used by the thread that got it.
+     */
+    public static final class Handle implements AutoCloseable {
+
+        /**
+         * The room that this handle is open for, or null if it's closed.
+         */
+        private Room room;
+
+        private Handle() {}
+
+        /**
+         * Returns the room that this handle is open for.
+         *
+         * @return the room, or {@code null} if this handle has been closed
+         */
+        public Room room() {
+            return room;
+        }
+
+        /**
+         * Exits the room, if this handle hasn't been closed yet.
+         */
+        @Override
+        public void close() {
+            Room r = room;
+            if (r != null) {
+                room = null;
+                r.exit();
+            }
+        }
+    }
+
+    /**
+     * A thread's {@link Handle}s, which {@link #enterHandle(int)} reuses in turn, so that a handle
+     * that was closed stays closed for as long as possible.
+     */
+    private static final class HandleRing {
+
+        final Handle[] handles = new Handle[HANDLES];
+
+        /**
+         * The index of the handle to try first.
+         */
+        int next;
+
+        /**
+         * Returns the next closed handle, or a new one if they're all open.
+         */
+        Handle next() {
+            for (int k = 0; k < HANDLES; k++) {
+                int i = (next + k) % HANDLES;
+                Handle h = handles[i];
+                if (h == null) {
+                    h = handles[i] = new Handle();
+                }
+                if (h.room == null) {
+                    next = (i + 1) % HANDLES;
+                    return h;
+                }
+            }
+            return new Handle();
+        }
+    }
+
+    /**
+     * The room that a thread of reentrant rooms is in, and how many times it has entered it
+     * without exiting.
+     */
+    private static final class Hold {
 
-    private final Room[] rooms;
+        Room room;
+        int depth;
+    }
 
     /**
-     * True iff any room is currently active.
+     * {@link #active} and the index of the active room. Both change only when the active room
+     * changes, so they share a cache line, but that line is padded away from everything else.
      */
-    private final AtomicBoolean active = new AtomicBoolean();
+    @SuppressWarnings("serial")
+    private static final class ActiveState extends AtomicBoolean {
+
+        /**
+         * The index of the currently-active room, meaningless when no room is active.
+         */
+        volatile int room;
+
+        /**
+         * The {@link System#nanoTime()} at which the active room's turn began, if there is a
+         * {@link Rooms#timeQuantum}. Only used by the thread that is changing the active room.
+         */
+        long turnStart;
+
+        long p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+    }
 
     /**
-     * The index of the currently-active room, meaningless when {@link #active} is {@code false}.
+     * Returns the metrics recorded so far. Entries and exits that happen while the snapshot is
+     * being taken may be partly counted.
+     *
+     * @return a snapshot of the metrics
+     * @throws IllegalStateException unless the rooms were built with
+     *         {@link Builder#recordMetrics(boolean)}
      */
-    private volatile int activeRoom;
+    public RoomsMetrics metrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("metrics are not being recorded");
+        }
+        return metrics.snapshot();
+    }
 
     /**
-     * Creates a group of {@code n} rooms. {@link #enter(int)} can be called with values {@code i}
-     * where {@code 0 <= i < n}.
-      *
-     * @param n  the number of rooms
+     * Registers a {@link RoomsMXBean} for these rooms' metrics with the platform MBean server.
+     * Each attribute read takes a new snapshot (see {@link #metrics()}). Unregister it with
+     * {@link MBeanServer#unregisterMBean(ObjectName)} once the rooms are no longer in use.
+     *
+     * @param name  the name to register the MBean under
+     * @throws IllegalStateException unless the rooms were built with
+     *         {@link Builder#recordMetrics(boolean)}
+     * @throws JMException if the MBean can't be registered, for example because the name is
+     *         already in use
      */
-    public Rooms(int n) {
-        rooms = new Room[n];
-        for (int i = 0; i < n; i++) {
-            rooms[i] = new Room();
+    public void registerMBean(ObjectName name) throws JMException {
+        if (metrics == null) {
+            throw new IllegalStateException("metrics are not being recorded");
         }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(new MetricsBean(), RoomsMXBean.class, true), name);
     }
 
     /**
-     * Spins until {@code room} can be entered. Intended to be used in a try-with-resources block:
-     * <pre>{@code
-     *  try (Room room = myRooms.enter(0)) {
-     *      // Perform activity while no other rooms can be entered.
-     *      // The `room` should not be used directly.
-     *  }
-     *  // other rooms can now be entered
-     * }</pre>
-     * <p>
-     * If a try-with-resources cannot be used, then {@link Room#exit()} can be called directly.
-     * <p>
-     * <b>It is very important that either {@code exit} or {@code close} is called exactly once for
-     * each call to {@code enter}!</b> If you are using a try-with-resources, then
-     * {@link Room#close()} will be called automatically.
-     *
-     * @param room  the room to enter, must be less than the number passed to the constructor
-     * @return the room that was entered
-     * @throws IndexOutOfBoundsException if {@code room} is outside the bounds of {@code this}
+     * The {@link RoomsMXBean} registered by {@link #registerMBean(ObjectName)}.
      */
-    public Room enter(int room) {
-        Room r = rooms[room];
-        long myTicket = r.entries.incrementAndGet();    // get ticket for the room
-        while (myTicket > r.grant) {                    // wait until ticket is granted
-            if (active.compareAndSet(false, true)) {    // while waiting, if no active room
-                activeRoom = room;                      // then make `room` the active room
-                r.grant = r.entries.get();              // grant tickets to enter room `room`
-                return r;
+    private final class MetricsBean implements RoomsMXBean {
+
+        @Override
+        public int getRoomCount() {
+            return rooms.length;
+        }
+
+        @Override
+        public long getSwitches() {
+            return metrics.switches.sum();
+        }
+
+        @Override
+        public long getIdleTransitions() {
+            return metrics.idleTransitions.sum();
+        }
+
+        @Override
+        public long[] getEntries() {
+            RoomsMetrics m = metrics();
+            long[] values = new long[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).entries();
             }
+            return values;
+        }
+
+        @Override
+        public double[] getMeanWaitTimes() {
+            RoomsMetrics m = metrics();
+            double[] values = new double[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).waitTime().mean();
+            }
+            return values;
+        }
+
+        @Override
+        public long[] getP99WaitTimes() {
+            RoomsMetrics m = metrics();
+            long[] values = new long[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).waitTime().percentile(99);
+            }
+            return values;
+        }
+
+        @Override
+        public long[] getMaxWaitTimes() {
+            RoomsMetrics m = metrics();
+            long[] values = new long[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).waitTime().max();
+            }
+            return values;
+        }
+
+        @Override
+        public double[] getMeanBatchSizes() {
+            RoomsMetrics m = metrics();
+            double[] values = new double[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).batchSize().mean();
+            }
+            return values;
+        }
+
+        @Override
+        public double[] getMeanHoldTimes() {
+            RoomsMetrics m = metrics();
+            double[] values = new double[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).holdTime().mean();
+            }
+            return values;
+        }
+
+        @Override
+        public long[] getP99HoldTimes() {
+            RoomsMetrics m = metrics();
+            long[] values = new long[m.rooms()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = m.room(i).holdTime().percentile(99);
+            }
+            return values;
         }
-        return r;
     }
 
     /**
-     * The room that has been entered. The only meaningful operation is to {@link #exit()} the room.
-     * All calls to {@link RoomLock#enter(int)} with the same value {@code i} will return the same
-     * {@code Room} object. Users can {@code synchronize} on that object for more fine-grained
-     * locking.
+     * Called by the thread that ended {@code lastRoom}'s batch, while {@link #active} is still
+     * set. Lets the scheduling policy choose a room with ticketed waiters, makes it active, and
+     * grants entry to all of that room's tickets. If there is no such room, then no room is active.
+     * The chosen room lingers first (see {@link Builder#linger(long, TimeUnit)}) only if
+     * {@code linger} is true, since a thread that is entering asynchronously must not wait.
      */
-    public class Room implements AutoCloseable {
+    private void setNextActiveRoom(int lastRoom, boolean linger) {
+        do {
+            for (;;) {
+                int newActiveRoom = schedulingPolicy.nextRoom(lastRoom, backlog);
+                if (newActiveRoom < 0) {
+                    break;
+                }
+                Room nar = rooms[newActiveRoom];
+                if (nar == null || !nar.hasWaiting()) {
+                    // The policy is wrong, but we still have to get somewhere.
+                    newActiveRoom = RoomSchedulingPolicy.roundRobin().nextRoom(lastRoom, backlog);
+                    if (newActiveRoom < 0) {
+                        break;
+                    }
+                    nar = rooms[newActiveRoom];
+                }
+                if (timeQuantum > 0) {
+                    if (newActiveRoom != lastRoom) {
+                        active.turnStart = System.nanoTime();
+                    } else if (System.nanoTime() - active.turnStart >= timeQuantum) {
+                        // The room's turn is up. It may continue only if no other room is waiting.
+                        int other = nextOtherRoom(lastRoom);
+                        if (other >= 0) {
+                            newActiveRoom = other;
+                            nar = rooms[other];
+                            active.turnStart = System.nanoTime();
+                        }
+                    }
+                }
+                if (newActiveRoom != lastRoom) {
+                    if (metrics != null) {
+                        metrics.switches.increment();
+                    }
+                    if (events) {
+                        RoomsEvents.switched(lastRoom, newActiveRoom);
+                    }
+                }
+                active.room = newActiveRoom;
+                if (linger && nar.linger > 0) {
+                    nar.linger();
+                }
+                if (!nar.grantWaiting()) {
+                    return;
+                }
+                nar.releaseIfRetired();
+                // Every ticket in the batch had been withdrawn, so that batch is over, too.
+                lastRoom = newActiveRoom;
+            }
+            // No waiters found, so no active room. The enter method will set the next active room.
+            active.set(false);
+            if (metrics != null) {
+                metrics.idleTransitions.increment();
+            }
+            if (events) {
+                RoomsEvents.switched(lastRoom, -1);
+            }
+            // ...unless every thread that could do so is parked. A thread that took its ticket
+            // after we checked its room, but checked `active` before we cleared it, may have
+            // parked (or may have queued an asynchronous entry). In that case, we try to activate
+            // a room on its behalf.
+        } while (queueing && hasQueuedWaiters() && active.compareAndSet(false, true));
+    }
+
+    /**
+     * Returns the next room after {@code room}, in round-robin order, that has waiters, not
+     * counting {@code room} itself; or {@code -1} if there is none.
+     */
+    private int nextOtherRoom(int room) {
+        Room[] rooms = this.rooms;
+        for (int k = 1; k < rooms.length; k++) {
+            int other = (room + k) % rooms.length;
+            Room r = rooms[other];
+            if (r != null && r.hasWaiting()) {
+                return other;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasQueuedWaiters() {
+        for (Room r : rooms) {
+            if (r != null && r.hasQueuedWaiters()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds {@link Rooms} with options beyond those of the constructors. See {@link #builder()}.
+     * A builder can build any number of {@code Rooms}, but see
+     * {@link #schedulingPolicy(RoomSchedulingPolicy)}.
+     */
+    public static final class Builder {
 
         /**
-         * Indicates the number of entries into this room. Each attempt to enter the room grabs a
-         * new {@code entries} value (which we call a <i>ticket</i>). See {@link #grant}.
+         * The system property that turns on {@link #diagnostics(boolean)} by default.
          */
-        private final AtomicLong entries = new AtomicLong();
+        public static final String DIAGNOSTICS_PROPERTY
+                = "net.mintern.concurrent.Rooms.diagnostics";
+
+        private WaitStrategy waitStrategy = WaitStrategy.busySpin();
+        private RoomSchedulingPolicy schedulingPolicy = RoomSchedulingPolicy.roundRobin();
+        private int stripes = 1;
+        private int maxBatchSize = Integer.MAX_VALUE;
+        private int[] maxBatchSizes;
+        private long timeQuantum;
+        private boolean openDoor;
+        private long linger;
+        private long[] lingers;
+        private int[] capacities;
+        private int[] exclusive;
+        private boolean recordMetrics;
+        private boolean flightRecorderEvents;
+        private boolean reentrant;
+        private boolean diagnostics = Boolean.getBoolean(DIAGNOSTICS_PROPERTY);
+
+        private Builder() {}
 
         /**
-         * All tickets (see {@link #entries}) higher than {@code grant} are waiting to execute. When
-         * {@link #exits} {@code < grant}, this room is still executing.
+         * Sets how threads wait to enter a room. The default is {@link WaitStrategy#busySpin()}.
+         *
+         * @param waitStrategy  determines how threads wait to enter a room
+         * @return this builder
          */
-        private volatile long grant;
+        public Builder waitStrategy(WaitStrategy waitStrategy) {
+            if (waitStrategy == null) {
+                throw new NullPointerException("waitStrategy");
+            }
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
 
         /**
-         * Indicates the number of exits from this room.
+         * Sets how the next active room is chosen. The default is
+         * {@link RoomSchedulingPolicy#roundRobin()}. A policy that keeps state must not be used by
+         * more than one {@code Rooms}.
+         *
+         * @param schedulingPolicy  determines which room becomes active next
+         * @return this builder
          */
-        private final AtomicLong exits = new AtomicLong();
+        public Builder schedulingPolicy(RoomSchedulingPolicy schedulingPolicy) {
+            if (schedulingPolicy == null) {
+                throw new NullPointerException("schedulingPolicy");
+            }
+            this.schedulingPolicy = schedulingPolicy;
+            return this;
+        }
 
         /**
-         * Exits this room. <b>This method (or {@link #exit()}) must be called exactly once!</b>.
+         * Limits the number of threads that enter a room each time it becomes active. By default,
+         * every thread waiting for the room enters at once, so a large backlog in one room can
+         * keep the other rooms waiting for a long time. With a limit, the rest of the backlog
+         * waits for the room's next turn (see {@link #schedulingPolicy(RoomSchedulingPolicy)}),
+         * which bounds how long the other rooms wait.
+         *
+         * @param maxBatchSize  the maximum number of threads that enter any room at once
+         * @return this builder
+         * @throws IllegalArgumentException if {@code maxBatchSize} is not positive
          */
-        @Override
-        public void close() {
-            exit();
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("maxBatchSize must be positive: "
+                        + maxBatchSize);
+            }
+            this.maxBatchSize = maxBatchSize;
+            this.maxBatchSizes = null;
+            return this;
         }
 
         /**
-         * Exits this room. <b>This method (or {@link #close()}) must be called exactly once!</b>.
+         * Just like {@link #maxBatchSize(int)}, except that each room has its own limit. Use
+         * {@link Integer#MAX_VALUE} for a room without a limit.
+         *
+         * @param maxBatchSizes  the maximum number of threads that enter each room at once
+         * @return this builder
+         * @throws IllegalArgumentException if any size is not positive; {@link #build(int)} also
+         *         throws it if there isn't one size for each room
          */
-        public void exit() {
-            if (DEBUG) {
-                // We can't catch every problem, but this will help sometimes.
-                if (!active.get() || this != rooms[activeRoom] || exits.get() >= grant) {
-                    throw new IllegalStateException("exit/close called more than once, possibly elsewhere");
+        public Builder maxBatchSizes(int... maxBatchSizes) {
+            for (int size : maxBatchSizes) {
+                if (size <= 0) {
+                    throw new IllegalArgumentException("batch sizes must be positive: "
+                            + Arrays.toString(maxBatchSizes));
                 }
             }
-            // If we are the last of this batch to exit, activate the next room.
-            if (exits.incrementAndGet() == grant) {
-                setNextActiveRoom(activeRoom + 1); // our room will be tried last
+            this.maxBatchSizes = maxBatchSizes.clone();
+            return this;
+        }
+
+        private long batchLimit(int room) {
+            int size = maxBatchSizes == null ? maxBatchSize : maxBatchSizes[room];
+            return size == Integer.MAX_VALUE ? Long.MAX_VALUE : size;
+        }
+
+        /**
+         * Limits how many threads may occupy each room at once, such as one for a room that
+         * writes. The first {@code capacities[i]} threads waiting for room {@code i} enter when it
+         * becomes active, and the rest wait for its next turn, just as if it had a
+         * {@link #maxBatchSize(int)} that {@link #openDoor(boolean)} couldn't get around. Unlike
+         * a {@code Semaphore} inside the room, this takes nothing more on the way in or out. Use
+         * {@link Integer#MAX_VALUE} for a room without a limit, which is the default.
+         * <p>
+         * A room with a small capacity takes more turns to let a backlog in. Under the default
+         * {@link RoomSchedulingPolicy#roundRobin()}, every other room that has waiters gets a turn
+         * between its batches, and it only takes turn after turn while no other room is waiting.
+         * Policies that let a room keep its turn, such as
+         * {@link RoomSchedulingPolicy#mostWaitersFirst()}, can favor a backlogged room for longer.
+         *
+         * @param capacities  the most threads that may occupy each room at once
+         * @return this builder
+         * @throws IllegalArgumentException if any capacity is not positive; {@link #build(int)}
+         *         also throws it if there isn't one capacity for each room
+         * @see #exclusive(int...)
+         */
+        public Builder capacities(int... capacities) {
+            for (int capacity : capacities) {
+                if (capacity <= 0) {
+                    throw new IllegalArgumentException("capacities must be positive: "
+                            + Arrays.toString(capacities));
+                }
             }
+            this.capacities = capacities.clone();
+            return this;
         }
-    }
 
-    private void setNextActiveRoom(int nextRoom) {
-        // Check each room, starting with nextRoom and wrapping around rooms. If there are ticketed
-        // waiters for a room, then we make it active and grant entry to all of that room's tickets.
-        for (int k = 0; k < rooms.length; k++) {
-            int newActiveRoom = (nextRoom + k) % rooms.length;
-            Room nar = rooms[newActiveRoom];
-            long currWait = nar.entries.get();
-            if (currWait > nar.grant) {
-                activeRoom = newActiveRoom;
-                nar.grant = currWait;
-                return;
+        /**
+         * Makes each of {@code rooms} admit one thread at a time, like a writer's room, whatever
+         * {@link #capacities(int...)} says.
+         *
+         * @param rooms  the rooms that admit one thread at a time
+         * @return this builder
+         * @throws IllegalArgumentException if any room is negative; {@link #build(int)} also
+         *         throws it if any room is out of range
+         */
+        public Builder exclusive(int... rooms) {
+            for (int room : rooms) {
+                if (room < 0) {
+                    throw new IllegalArgumentException("negative room: " + Arrays.toString(rooms));
+                }
+            }
+            this.exclusive = rooms.clone();
+            return this;
+        }
+
+        private int capacity(int room) {
+            if (exclusive != null) {
+                for (int r : exclusive) {
+                    if (r == room) {
+                        return 1;
+                    }
+                }
+            }
+            return capacities == null ? Integer.MAX_VALUE : capacities[room];
+        }
+
+        /**
+         * Limits how long a room keeps its turn while other rooms are waiting. A room's turn
+         * lasts for as many consecutive batches as the scheduling policy gives it (see
+         * {@link #schedulingPolicy(RoomSchedulingPolicy)}), and each batch admits every waiting
+         * thread (see {@link #maxBatchSize(int)}), so without a quantum, a busy room can keep the
+         * other rooms waiting for a long time. Once a room has been active for {@code quantum},
+         * it admits no more threads if any other room is waiting, and the other room becomes
+         * active as soon as the current occupants exit. By default, there is no quantum.
+         * <p>
+         * A room's occupants are never cut short, so the longest wait for another room is about
+         * {@code quantum} plus the time that the room's last batch takes to exit.
+         *
+         * @param quantum  the longest that a room keeps its turn while other rooms wait
+         * @param unit     the unit of {@code quantum}
+         * @return this builder
+         * @throws IllegalArgumentException if {@code quantum} is not positive
+         */
+        public Builder timeQuantum(long quantum, TimeUnit unit) {
+            if (quantum <= 0) {
+                throw new IllegalArgumentException("quantum must be positive: " + quantum);
+            }
+            this.timeQuantum = unit.toNanos(quantum);
+            return this;
+        }
+
+        /**
+         * Lets threads join the active room right away, as long as no thread is waiting for a
+         * room. By default, a thread that enters the active room waits for the room's current
+         * batch to exit and then enters with the next batch, even when no other room is waiting.
+         * With an open door, a workload that stays in one room mostly never waits.
+         * <p>
+         * As soon as any thread is waiting, such as for another room, the door closes, and
+         * threads wait for the next batch as usual, so the waiting room gets its turn once the
+         * current occupants exit. Whether anyone is waiting is kept in one shared counter, which
+         * each thread that has to wait updates on its way in, so joining a batch costs the same
+         * however many rooms there are.
+         * Threads that join a batch don't count toward {@link #maxBatchSize(int)}, but they can't
+         * join rooms that have a capacity (see {@link #capacities(int...)}).
+         *
+         * @param openDoor  whether threads may join the active room's current batch
+         * @return this builder
+         */
+        public Builder openDoor(boolean openDoor) {
+            this.openDoor = openDoor;
+            return this;
+        }
+
+        /**
+         * Makes each room wait a little for more threads before letting a batch in. When the last
+         * thread exits the active room, it chooses the next room and then, before granting entry,
+         * spins for up to {@code linger} (or until {@link #maxBatchSize(int)} threads are waiting)
+         * so that threads arriving in the meantime join the batch. For rooms that are expensive
+         * to switch into, larger batches spread that cost over more threads, at the expense of a
+         * little latency. Only an exiting thread lingers: a room that an entering thread activates
+         * (because no room was active) lets its batch in right away, so that
+         * {@link Rooms#enterAsync(int)} never waits. By default, rooms don't linger.
+         *
+         * @param linger  the longest to wait for more threads before letting a batch in
+         * @param unit    the unit of {@code linger}
+         * @return this builder
+         * @throws IllegalArgumentException if {@code linger} is negative
+         */
+        public Builder linger(long linger, TimeUnit unit) {
+            if (linger < 0) {
+                throw new IllegalArgumentException("negative linger: " + linger);
+            }
+            this.linger = unit.toNanos(linger);
+            this.lingers = null;
+            return this;
+        }
+
+        /**
+         * Just like {@link #linger(long, TimeUnit)}, except that each room has its own linger time.
+         * Use {@code 0} for a room that shouldn't linger.
+         *
+         * @param unit     the unit of {@code lingers}
+         * @param lingers  the longest that each room waits for more threads
+         * @return this builder
+         * @throws IllegalArgumentException if any linger time is negative; {@link #build(int)}
+         *         also throws it if there isn't one linger time for each room
+         */
+        public Builder lingers(TimeUnit unit, long... lingers) {
+            long[] nanos = new long[lingers.length];
+            for (int i = 0; i < lingers.length; i++) {
+                if (lingers[i] < 0) {
+                    throw new IllegalArgumentException("negative linger: "
+                            + Arrays.toString(lingers));
+                }
+                nanos[i] = unit.toNanos(lingers[i]);
+            }
+            this.lingers = nanos;
+            return this;
+        }
+
+        private long linger(int room) {
+            return lingers == null ? linger : lingers[room];
+        }
+
+        /**
+         * Records how long threads wait to enter each room, how many enter at once, how long
+         * each batch keeps its room, and how often the active room changes. See
+         * {@link Rooms#metrics()}. By default, nothing is recorded, and the rooms pay nothing more
+         * than a null check for it.
+         *
+         * @param recordMetrics  whether to record metrics
+         * @return this builder
+         */
+        public Builder recordMetrics(boolean recordMetrics) {
+            this.recordMetrics = recordMetrics;
+            return this;
+        }
+
+        /**
+         * Emits Java Flight Recorder events when threads enter and exit a room, when a batch is
+         * granted, and when the active room changes, so that room contention can be lined up with
+         * GC pauses, safepoints and CPU usage in the same recording. The events are in the
+         * "Rooms" category, named {@code net.mintern.concurrent.RoomEnter}, {@code RoomExit},
+         * {@code RoomGrant} and {@code RoomSwitch}, and they are recorded only while a recording
+         * has them enabled. By default, no events are emitted, and the rooms pay nothing more than
+         * a {@code boolean} check for them.
+         * <p>
+         * Events require a JVM with the {@code jdk.jfr} API (Java 11, or 8u262 and later).
+         *
+         * @param flightRecorderEvents  whether to emit Flight Recorder events
+         * @return this builder
+         */
+        public Builder flightRecorderEvents(boolean flightRecorderEvents) {
+            this.flightRecorderEvents = flightRecorderEvents;
+            return this;
+        }
+
+        /**
+         * Lets a thread that is in a room enter it again, as layered code often does. Normally, a
+         * thread that enters the room that it is already in takes a ticket for the room's next
+         * batch, which can't start until the thread exits, so it waits forever. In a reentrant
+         * room, nested entries are counted in a thread-local, and they don't touch the room's
+         * shared counters; only the thread's last exit leaves the room. A thread that calls
+         * {@link Rooms#enter(int)}, {@link Rooms#enterInterruptibly(int)} or
+         * {@link Rooms#enterHandle(int)} for a different room from within a room gets an
+         * {@link IllegalStateException} rather than waiting forever. {@link Rooms#tryEnter(int)}
+         * and its timed variant can't wait forever, so they just fail as usual.
+         * <p>
+         * Only entries by the thread itself are counted: an entry made with
+         * {@link Rooms#enterAsync(int)} isn't held by any thread, so a thread can't reenter it. By
+         * default, rooms are not reentrant, and they pay nothing more than a null check for it.
+         *
+         * @param reentrant  whether threads may enter the room that they're already in
+         * @return this builder
+         */
+        public Builder reentrant(boolean reentrant) {
+            this.reentrant = reentrant;
+            return this;
+        }
+
+        /**
+         * Selects diagnostic mode, which checks every exit against the entries that it could
+         * match, and throws an {@link IllegalStateException} from an exit that matches none:
+         * <ul>
+         * <li>A room entered with {@link Rooms#enter(int)}, or any other method that returns a
+         * {@code Room} directly, is owned by the entering thread, and only that thread may exit
+         * it. A double exit, or an exit from the wrong room, fails right away, in the thread
+         * that made the mistake.
+         * <li>A room entered with {@link Rooms#enterAsync(int)} isn't owned by any thread, and
+         * any thread may exit it, but the room can't be exited more times than it was entered
+         * that way.
+         * </ul>
+         * Tracking ownership costs a thread-local lookup per entry and exit, and an atomic update
+         * per asynchronous entry and exit, so the default is release mode, which checks nothing.
+         * Misuse in release mode corrupts the rooms' state, so use diagnostic mode in tests. It
+         * is also the default when the {@value #DIAGNOSTICS_PROPERTY} system property is
+         * {@code true}.
+         *
+         * @param diagnostics  whether to check every exit
+         * @return this builder
+         */
+        public Builder diagnostics(boolean diagnostics) {
+            this.diagnostics = diagnostics;
+            return this;
+        }
+
+        /**
+         * Spreads each room's ticket and exit counts across {@code stripes} counters, each on its
+         * own cache line, so that the threads of a large batch don't all update one counter as
+         * they enter and exit. Each thread uses a fixed stripe, and an occupant usually exits
+         * through the stripe that it entered through. By default, there is one stripe, which is
+         * the right choice unless many threads enter the same room at the same time.
+         * <p>
+         * Stripes aren't free. Each room keeps three sets of them, about
+         * {@code 384 * (stripes + 1)} bytes in all, and every change of the active room and every
+         * {@link #linger(long, TimeUnit)} step reads each stripe of each room that it looks at.
+         * One stripe per processor suits a few rooms that are each entered by most of the
+         * processors at once; many rooms, or rooms that only a few threads enter at a time, are
+         * better off with one.
+         *
+         * @param stripes  the number of stripes, which must be a power of two
+         * @return this builder
+         * @throws IllegalArgumentException if {@code stripes} is not a positive power of two
+         */
+        public Builder stripes(int stripes) {
+            if (stripes <= 0 || (stripes & (stripes - 1)) != 0) {
+                throw new IllegalArgumentException("stripes must be a power of two: " + stripes);
             }
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Builds a group of {@code n} rooms.
+         *
+         * @param n  the number of rooms
+         * @return the rooms
+         * @throws IllegalArgumentException if the scheduling policy can't schedule {@code n} rooms
+         */
+        public Rooms build(int n) {
+            return new Rooms(n, this);
+        }
+
+        /**
+         * Builds a group of rooms where each of {@code enumCls}'s values has its own room.
+         *
+         * @param <E>      the {@code enum} type
+         * @param enumCls  the {@code enum} class
+         * @return the rooms
+         * @throws IllegalArgumentException if the scheduling policy can't schedule that many rooms
+         */
+        public <E extends Enum<E>> Enumerated<E> build(Class<E> enumCls) {
+            return new Enumerated<>(build(enumCls.getEnumConstants().length));
         }
-        // No waiters found, so no active room. The enter method will set the next active room.
-        active.set(false);
     }
 
     /**
@@ -221,6 +2250,48 @@ public class Rooms {
             rooms = new Rooms(enumCls.getEnumConstants().length);
         }
 
+        /**
+         * Creates a group of rooms where each of {@code enumCls}'s values has its own room, and
+         * where waiting threads spin for up to {@code spinTime} before parking. See
+         * {@link Rooms#Rooms(int, long, TimeUnit)}.
+         *
+         * @param enumCls   the {@code enum} class
+         * @param spinTime  the maximum time to spin before parking; {@code 0} to park right away
+         * @param unit      the unit of {@code spinTime}
+         * @throws IllegalArgumentException if {@code spinTime} is negative
+         */
+        public Enumerated(Class<E> enumCls, long spinTime, TimeUnit unit) {
+            rooms = new Rooms(enumCls.getEnumConstants().length, spinTime, unit);
+        }
+
+        /**
+         * Creates a group of rooms where each of {@code enumCls}'s values has its own room, and
+         * where waiting threads wait according to {@code waitStrategy}. See
+         * {@link Rooms#Rooms(int, WaitStrategy)}.
+         *
+         * @param enumCls       the {@code enum} class
+         * @param waitStrategy  determines how threads wait to enter a room
+         */
+        public Enumerated(Class<E> enumCls, WaitStrategy waitStrategy) {
+            rooms = new Rooms(enumCls.getEnumConstants().length, waitStrategy);
+        }
+
+        private Enumerated(Rooms rooms) {
+            this.rooms = rooms;
+        }
+
+        /**
+         * Returns the metrics recorded so far, where room {@code i} is the {@code enum} value
+         * whose ordinal is {@code i}. See {@link Rooms#metrics()}.
+         *
+         * @return a snapshot of the metrics
+         * @throws IllegalStateException unless the rooms were built with
+         *         {@link Builder#recordMetrics(boolean)}
+         */
+        public RoomsMetrics metrics() {
+            return rooms.metrics();
+        }
+
         /**
          * Just like {@link Rooms#enter(int)}, except that it accepts an {@code E room} instead of
          * an {@code int}. Be sure to call {@link Room#exit()} or {@link Room#close()} exactly once.
@@ -231,5 +2302,77 @@ public class Rooms {
         public Room enter(E room) {
             return rooms.enter(room.ordinal());
         }
+
+        /**
+         * Just like {@link Rooms#enterHandle(int)}, except that it accepts an {@code E room}
+         * instead of an {@code int}.
+         *
+         * @param room  the room to enter
+         * @return the thread's handle, now open for {@code room}
+         */
+        public Handle enterHandle(E room) {
+            return rooms.enterHandle(room.ordinal());
+        }
+
+        /**
+         * Just like {@link Rooms#enterInterruptibly(int)}, except that it accepts an
+         * {@code E room} instead of an {@code int}.
+         *
+         * @param room  the room to enter
+         * @return the room that was entered
+         * @throws InterruptedException if the current thread is interrupted while waiting
+         */
+        public Room enterInterruptibly(E room) throws InterruptedException {
+            return rooms.enterInterruptibly(room.ordinal());
+        }
+
+        /**
+         * Just like {@link Rooms#enterAsync(int)}, except that it accepts an {@code E room}
+         * instead of an {@code int}.
+         *
+         * @param room  the room to enter
+         * @return a future that completes with the room once it has been entered
+         */
+        public CompletableFuture<Room> enterAsync(E room) {
+            return rooms.enterAsync(room.ordinal());
+        }
+
+        /**
+         * Just like {@link Rooms#enterAsync(int, Executor)}, except that it accepts an
+         * {@code E room} instead of an {@code int}.
+         *
+         * @param room      the room to enter
+         * @param executor  the executor that completes the future, or {@code null} for the
+         *                  granting thread
+         * @return a future that completes with the room once it has been entered
+         */
+        public CompletableFuture<Room> enterAsync(E room, Executor executor) {
+            return rooms.enterAsync(room.ordinal(), executor);
+        }
+
+        /**
+         * Just like {@link Rooms#tryEnter(int)}, except that it accepts an {@code E room} instead
+         * of an {@code int}.
+         *
+         * @param room  the room to enter
+         * @return the room that was entered, or {@code null} if it could not be entered right away
+         */
+        public Room tryEnter(E room) {
+            return rooms.tryEnter(room.ordinal());
+        }
+
+        /**
+         * Just like {@link Rooms#tryEnter(int, long, TimeUnit)}, except that it accepts an
+         * {@code E room} instead of an {@code int}.
+         *
+         * @param room     the room to enter
+         * @param timeout  the maximum time to wait
+         * @param unit     the unit of {@code timeout}
+         * @return the room that was entered, or {@code null} if the timeout elapsed first
+         * @throws InterruptedException if the current thread is interrupted while waiting
+         */
+        public Room tryEnter(E room, long timeout, TimeUnit unit) throws InterruptedException {
+            return rooms.tryEnter(room.ordinal(), timeout, unit);
+        }
     }
 }
@@ -0,0 +1,126 @@
+package net.mintern.concurrent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events that {@link Rooms} emits when it is built with
+ * {@link Rooms.Builder#flightRecorderEvents(boolean)}. Nothing in this class is loaded otherwise,
+ * so rooms without events also work on JVMs that lack the {@code jdk.jfr} API.
+ * <p>
+ * Each method checks whether its event is enabled in a running recording before filling it in,
+ * so an event that isn't being recorded costs little more than the check.
+ */
+final class RoomsEvents {
+
+    private static final String CATEGORY = "Rooms";
+
+    private RoomsEvents() {}
+
+    static void entered(int room, long ticket, long waitTime) {
+        EnterEvent e = new EnterEvent();
+        if (e.isEnabled()) {
+            e.room = room;
+            e.ticket = ticket;
+            e.waitTime = waitTime;
+            e.commit();
+        }
+    }
+
+    static void exited(int room, boolean last) {
+        ExitEvent e = new ExitEvent();
+        if (e.isEnabled()) {
+            e.room = room;
+            e.last = last;
+            e.commit();
+        }
+    }
+
+    static void granted(int room, long batchSize) {
+        GrantEvent e = new GrantEvent();
+        if (e.isEnabled()) {
+            e.room = room;
+            e.batchSize = batchSize;
+            e.commit();
+        }
+    }
+
+    static void switched(int fromRoom, int toRoom) {
+        SwitchEvent e = new SwitchEvent();
+        if (e.isEnabled()) {
+            e.fromRoom = fromRoom;
+            e.toRoom = toRoom;
+            e.commit();
+        }
+    }
+
+    @Name("net.mintern.concurrent.RoomEnter")
+    @Label("Room Enter")
+    @Description("A thread entered a room")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class EnterEvent extends Event {
+
+        @Label("Room")
+        int room;
+
+        @Label("Ticket")
+        @Description("The ticket taken within the thread's stripe, or 0 if it joined a batch"
+                + " through an open door")
+        long ticket;
+
+        @Label("Wait Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitTime;
+    }
+
+    @Name("net.mintern.concurrent.RoomExit")
+    @Label("Room Exit")
+    @Description("A thread exited a room")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ExitEvent extends Event {
+
+        @Label("Room")
+        int room;
+
+        @Label("Last")
+        @Description("Whether the exit ended the room's batch")
+        boolean last;
+    }
+
+    @Name("net.mintern.concurrent.RoomGrant")
+    @Label("Room Grant")
+    @Description("A batch of waiting threads was let into a room")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class GrantEvent extends Event {
+
+        @Label("Room")
+        int room;
+
+        @Label("Batch Size")
+        long batchSize;
+    }
+
+    @Name("net.mintern.concurrent.RoomSwitch")
+    @Label("Room Switch")
+    @Description("The active room changed")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class SwitchEvent extends Event {
+
+        @Label("From Room")
+        @Description("The previously active room, or -1 if no room was active")
+        int fromRoom;
+
+        @Label("To Room")
+        @Description("The newly active room, or -1 if no room is active now")
+        int toRoom;
+    }
+}
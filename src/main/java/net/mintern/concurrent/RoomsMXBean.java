@@ -0,0 +1,69 @@
+package net.mintern.concurrent;
+
+/**
+ * The JMX view of {@link RoomsMetrics}, registered by
+ * {@link Rooms#registerMBean(javax.management.ObjectName)}. Each array has one element per room,
+ * and times are in nanoseconds.
+ */
+public interface RoomsMXBean {
+
+    /**
+     * @return the number of rooms
+     * @see RoomsMetrics#rooms()
+     */
+    int getRoomCount();
+
+    /**
+     * @return the number of room switches
+     * @see RoomsMetrics#switches()
+     */
+    long getSwitches();
+
+    /**
+     * @return the number of idle transitions
+     * @see RoomsMetrics#idleTransitions()
+     */
+    long getIdleTransitions();
+
+    /**
+     * @return the number of entries into each room
+     * @see RoomsMetrics.RoomMetrics#entries()
+     */
+    long[] getEntries();
+
+    /**
+     * @return the mean wait to enter each room
+     * @see RoomsMetrics.RoomMetrics#waitTime()
+     */
+    double[] getMeanWaitTimes();
+
+    /**
+     * @return an upper bound on the 99th percentile wait to enter each room
+     * @see RoomsMetrics.RoomMetrics#waitTime()
+     */
+    long[] getP99WaitTimes();
+
+    /**
+     * @return the longest wait to enter each room
+     * @see RoomsMetrics.RoomMetrics#waitTime()
+     */
+    long[] getMaxWaitTimes();
+
+    /**
+     * @return the mean number of tickets granted each time each room became active
+     * @see RoomsMetrics.RoomMetrics#batchSize()
+     */
+    double[] getMeanBatchSizes();
+
+    /**
+     * @return the mean time that each room's batches kept it active
+     * @see RoomsMetrics.RoomMetrics#holdTime()
+     */
+    double[] getMeanHoldTimes();
+
+    /**
+     * @return an upper bound on the 99th percentile time that each room's batches kept it active
+     * @see RoomsMetrics.RoomMetrics#holdTime()
+     */
+    long[] getP99HoldTimes();
+}
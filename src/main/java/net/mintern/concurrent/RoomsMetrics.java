@@ -0,0 +1,204 @@
+package net.mintern.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the metrics that a {@link Rooms} records when it is built with
+ * {@link Rooms.Builder#recordMetrics(boolean)}. See {@link Rooms#metrics()}.
+ * <p>
+ * Times are in nanoseconds. The counts are cumulative since the rooms were created, so the
+ * difference between two snapshots describes the time in between.
+ */
+public final class RoomsMetrics {
+
+    private final RoomMetrics[] rooms;
+    private final long switches;
+    private final long idleTransitions;
+
+    private RoomsMetrics(RoomMetrics[] rooms, long switches, long idleTransitions) {
+        this.rooms = rooms;
+        this.switches = switches;
+        this.idleTransitions = idleTransitions;
+    }
+
+    /**
+     * Returns the number of rooms.
+     *
+     * @return the number of rooms
+     */
+    public int rooms() {
+        return rooms.length;
+    }
+
+    /**
+     * Returns the metrics of {@code room}. Once a retired room has been released (see
+     * {@link Rooms#retireRoom(int)}), its metrics are dropped, and it reports none.
+     *
+     * @param room  the room
+     * @return the room's metrics
+     * @throws IndexOutOfBoundsException if {@code room} is out of range
+     */
+    public RoomMetrics room(int room) {
+        return rooms[room];
+    }
+
+    /**
+     * Returns the number of times a batch was let into a different room than the previous batch.
+     *
+     * @return the number of room switches
+     */
+    public long switches() {
+        return switches;
+    }
+
+    /**
+     * Returns the number of times a batch ended with no thread waiting for any room, leaving no
+     * room active.
+     *
+     * @return the number of idle transitions
+     */
+    public long idleTransitions() {
+        return idleTransitions;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("switches=").append(switches).append(" idleTransitions=").append(idleTransitions);
+        for (int i = 0; i < rooms.length; i++) {
+            sb.append("\nroom ").append(i).append(": ").append(rooms[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The metrics of a single room.
+     */
+    public static final class RoomMetrics {
+
+        private final Histogram waitTime;
+        private final Histogram batchSize;
+        private final Histogram holdTime;
+
+        private RoomMetrics(Histogram waitTime, Histogram batchSize, Histogram holdTime) {
+            this.waitTime = waitTime;
+            this.batchSize = batchSize;
+            this.holdTime = holdTime;
+        }
+
+        /**
+         * Returns the number of times the room was entered.
+         *
+         * @return the number of entries
+         */
+        public long entries() {
+            return waitTime.count();
+        }
+
+        /**
+         * Returns how long each entry waited to get in, including the entries that didn't wait.
+         *
+         * @return the wait times
+         */
+        public Histogram waitTime() {
+            return waitTime;
+        }
+
+        /**
+         * Returns the number of tickets granted each time the room became active. Threads that
+         * join a batch through an open door (see {@link Rooms.Builder#openDoor(boolean)}) are not
+         * counted.
+         *
+         * @return the batch sizes
+         */
+        public Histogram batchSize() {
+            return batchSize;
+        }
+
+        /**
+         * Returns how long each batch kept the room active, from the grant to the last exit. This
+         * is how long the batch kept every other room waiting.
+         *
+         * @return the hold times
+         */
+        public Histogram holdTime() {
+            return holdTime;
+        }
+
+        @Override
+        public String toString() {
+            return "wait(" + waitTime + ") batch(" + batchSize + ") hold(" + holdTime + ")";
+        }
+    }
+
+    /**
+     * Records the metrics of a {@link Rooms} instance.
+     */
+    static final class Recorder {
+
+        /**
+         * The metrics of a room that has been released, which are dropped.
+         */
+        private static final RoomMetrics RELEASED = new RoomRecorder().snapshot();
+
+        /**
+         * The recorder of each room, or null for each room that has been released. Replaced
+         * (never modified) by {@link #addRoom()} and {@link #release(int)}.
+         */
+        volatile RoomRecorder[] rooms;
+        final LongAdder switches = new LongAdder();
+        final LongAdder idleTransitions = new LongAdder();
+
+        Recorder(int n) {
+            RoomRecorder[] rooms = new RoomRecorder[n];
+            for (int i = 0; i < n; i++) {
+                rooms[i] = new RoomRecorder();
+            }
+            this.rooms = rooms;
+        }
+
+        /**
+         * Adds a recorder for a new room. Only called while the {@link Rooms} are locked.
+         */
+        RoomRecorder addRoom() {
+            RoomRecorder[] added = Arrays.copyOf(rooms, rooms.length + 1);
+            RoomRecorder r = new RoomRecorder();
+            added[added.length - 1] = r;
+            rooms = added;
+            return r;
+        }
+
+        /**
+         * Drops the recorder of a retired room. Only called while the {@link Rooms} are locked.
+         */
+        void release(int room) {
+            RoomRecorder[] released = rooms.clone();
+            released[room] = null;
+            rooms = released;
+        }
+
+        RoomsMetrics snapshot() {
+            RoomRecorder[] rooms = this.rooms;
+            RoomMetrics[] snapshots = new RoomMetrics[rooms.length];
+            for (int i = 0; i < rooms.length; i++) {
+                snapshots[i] = rooms[i] == null ? RELEASED : rooms[i].snapshot();
+            }
+            return new RoomsMetrics(snapshots, switches.sum(), idleTransitions.sum());
+        }
+    }
+
+    /**
+     * Records the metrics of a single room.
+     */
+    static final class RoomRecorder {
+
+        final Histogram.Recorder waitTime = new Histogram.Recorder();
+        final Histogram.Recorder batchSize = new Histogram.Recorder();
+        final Histogram.Recorder holdTime = new Histogram.Recorder();
+
+        RoomMetrics snapshot() {
+            return new RoomMetrics(waitTime.snapshot(), batchSize.snapshot(), holdTime.snapshot());
+        }
+    }
+}
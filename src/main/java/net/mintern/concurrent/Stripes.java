@@ -0,0 +1,68 @@
+package net.mintern.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A power-of-two number of {@code long} cells, each padded to its own cache line (like
+ * {@link PaddedAtomicLong}), that threads spread their updates across. Each thread has a fixed
+ * home stripe, {@link #home()}, so a thread that keeps returning to the same stripes keeps finding
+ * them in its own cache.
+ */
+final class Stripes {
+
+    /**
+     * The number of {@code long}s per cell: 128 bytes, which covers the adjacent-line prefetch
+     * done by many processors.
+     */
+    private static final int PAD = 16;
+
+    /**
+     * The cells, at indexes {@code PAD}, {@code 2 * PAD}, ... The first {@code PAD} elements keep
+     * the first cell away from the array header.
+     */
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+    /**
+     * @param count  the number of stripes, which must be a power of two
+     */
+    Stripes(int count) {
+        if (count <= 0 || (count & (count - 1)) != 0) {
+            throw new IllegalArgumentException("stripe count must be a power of two: " + count);
+        }
+        cells = new AtomicLongArray((count + 1) * PAD);
+        mask = count - 1;
+    }
+
+    /**
+     * Returns the current thread's home stripe.
+     */
+    int home() {
+        int h = System.identityHashCode(Thread.currentThread()) * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    /**
+     * Returns the stripe {@code k} places after {@code stripe}, wrapping around.
+     */
+    int next(int stripe, int k) {
+        return (stripe + k) & mask;
+    }
+
+    long get(int stripe) {
+        return cells.get((stripe + 1) * PAD);
+    }
+
+    void set(int stripe, long value) {
+        cells.set((stripe + 1) * PAD, value);
+    }
+
+    long incrementAndGet(int stripe) {
+        return cells.incrementAndGet((stripe + 1) * PAD);
+    }
+
+    boolean compareAndSet(int stripe, long expect, long update) {
+        return cells.compareAndSet((stripe + 1) * PAD, expect, update);
+    }
+}
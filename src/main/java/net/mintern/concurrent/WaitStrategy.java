@@ -0,0 +1,331 @@
+package net.mintern.concurrent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines what a thread does while it waits to enter a room. {@link Rooms#enter(int)} calls
+ * {@link #idle(int, long)} each time it finds that its ticket has not been granted yet, and then
+ * either checks again right away or parks, depending on the result.
+ * <p>
+ * The built-in strategies cover the usual trade-offs between reaction time and CPU usage:
+ * <ul>
+ * <li>{@link #busySpin()} reacts fastest, but burns a full core per waiter.
+ * <li>{@link #spinWithHint()} is nearly as fast, and lets the processor save power and give
+ * resources to a sibling hyperthread while spinning.
+ * <li>{@link #yielding()} and {@link #exponentialBackoff(int)} spin more politely.
+ * <li>{@link #park()} and {@link #timedPark(long, TimeUnit)} use no CPU while waiting, but pay a
+ * context switch to wake up.
+ * <li>{@link #spinThenPark(long, TimeUnit)} spins through short waits and parks through long ones.
+ * <li>{@link #virtualThreadAware(WaitStrategy)} parks virtual threads right away, and lets platform
+ * threads wait however they like.
+ * </ul>
+ * <p>
+ * A parked waiter is unparked by the thread that grants its ticket, so strategies never need to
+ * poll in order to make progress. The same strategy object is shared by all threads waiting on a
+ * {@link Rooms} instance, so implementations must be thread-safe.
+ */
+public abstract class WaitStrategy {
+
+    /**
+     * Parks until the waiting thread's ticket is granted. See {@link #idle(int, long)}.
+     */
+    protected static final long PARK = 0;
+
+    /**
+     * Checks again right away. See {@link #idle(int, long)}.
+     */
+    protected static final long RETRY = -1;
+
+    private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private static final WaitStrategy BUSY_SPIN = new Spinning("busySpin") {
+        @Override
+        public long idle(int iteration, long waitStart) {
+            return RETRY;
+        }
+    };
+
+    private static final WaitStrategy SPIN_WITH_HINT = new Spinning("spinWithHint") {
+        @Override
+        public long idle(int iteration, long waitStart) {
+            onSpinWait();
+            return RETRY;
+        }
+    };
+
+    private static final WaitStrategy YIELDING = new Spinning("yielding") {
+        @Override
+        public long idle(int iteration, long waitStart) {
+            Thread.yield();
+            return RETRY;
+        }
+    };
+
+    private static final WaitStrategy PARKING = new WaitStrategy() {
+        @Override
+        public long idle(int iteration, long waitStart) {
+            return PARK;
+        }
+
+        @Override
+        public String toString() {
+            return "park";
+        }
+    };
+
+    /**
+     * Called each time a thread finds that it cannot enter its room yet.
+     *
+     * @param iteration  the number of previous calls during this wait, saturating at
+     *                   {@link Integer#MAX_VALUE}
+     * @param waitStart  the {@link System#nanoTime()} at which this wait began
+     * @return {@link #RETRY} (or any negative value) to check again right away, {@link #PARK} to
+     *         park until the ticket is granted, or a positive number of nanoseconds to park for at
+     *         most that long
+     */
+    public abstract long idle(int iteration, long waitStart);
+
+    /**
+     * Returns true if {@link #idle(int, long)} can ever return a non-negative value. Rooms whose
+     * waiters never park can skip some bookkeeping.
+     */
+    boolean mayPark() {
+        return true;
+    }
+
+    /**
+     * Returns a strategy that checks again immediately, without pausing at all. This is how
+     * {@link Rooms#Rooms(int)} waits.
+     *
+     * @return the busy-spin strategy
+     */
+    public static WaitStrategy busySpin() {
+        return BUSY_SPIN;
+    }
+
+    /**
+     * Returns a strategy that spins, calling {@code Thread.onSpinWait()} on each iteration when it
+     * is available (Java 9 and later). On older runtimes, this is the same as {@link #busySpin()}.
+     *
+     * @return the spin-with-hint strategy
+     */
+    public static WaitStrategy spinWithHint() {
+        return SPIN_WITH_HINT;
+    }
+
+    /**
+     * Returns a strategy that calls {@link Thread#yield()} on each iteration, letting other
+     * runnable threads (such as the occupants of the active room) use the core.
+     *
+     * @return the yielding strategy
+     */
+    public static WaitStrategy yielding() {
+        return YIELDING;
+    }
+
+    /**
+     * Returns a strategy that spins with exponential backoff: the {@code i}th iteration pauses for
+     * {@code 2^i} spin hints (see {@link #spinWithHint()}), up to {@code maxSpins}. Backing off
+     * reduces the traffic that waiters generate on the shared counters of the room they wait for.
+     *
+     * @param maxSpins  the maximum number of spin hints per iteration
+     * @return an exponential backoff strategy
+     * @throws IllegalArgumentException if {@code maxSpins} is not positive
+     */
+    public static WaitStrategy exponentialBackoff(final int maxSpins) {
+        if (maxSpins <= 0) {
+            throw new IllegalArgumentException("maxSpins must be positive: " + maxSpins);
+        }
+        return new Spinning("exponentialBackoff(" + maxSpins + ")") {
+            @Override
+            public long idle(int iteration, long waitStart) {
+                int spins = iteration < 31 ? Math.min(1 << iteration, maxSpins) : maxSpins;
+                for (int i = 0; i < spins; i++) {
+                    onSpinWait();
+                }
+                return RETRY;
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy that parks right away until the thread's ticket is granted.
+     *
+     * @return the parking strategy
+     */
+    public static WaitStrategy park() {
+        return PARKING;
+    }
+
+    /**
+     * Returns a strategy that parks for at most {@code timeout} at a time. The waiter is still
+     * unparked as soon as its ticket is granted; the timeout only bounds how long it can go
+     * without rechecking on its own, for deployments that prefer not to depend entirely on being
+     * woken up.
+     *
+     * @param timeout  the maximum time to park at once
+     * @param unit     the unit of {@code timeout}
+     * @return a timed parking strategy
+     * @throws IllegalArgumentException if {@code timeout} is not positive
+     */
+    public static WaitStrategy timedPark(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        }
+        final long timeoutNanos = unit.toNanos(timeout);
+        final String name = "timedPark(" + timeout + " " + unit + ")";
+        return new WaitStrategy() {
+            @Override
+            public long idle(int iteration, long waitStart) {
+                return timeoutNanos;
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy that spins (see {@link #spinWithHint()}) for at most {@code spinTime},
+     * and then parks until the thread's ticket is granted. This is how
+     * {@link Rooms#Rooms(int, long, TimeUnit)} waits.
+     *
+     * @param spinTime  the maximum time to spin before parking; {@code 0} to park right away
+     * @param unit      the unit of {@code spinTime}
+     * @return a spin-then-park strategy
+     * @throws IllegalArgumentException if {@code spinTime} is negative
+     */
+    public static WaitStrategy spinThenPark(long spinTime, TimeUnit unit) {
+        if (spinTime < 0) {
+            throw new IllegalArgumentException("negative spin time: " + spinTime);
+        }
+        final long spinNanos = unit.toNanos(spinTime);
+        final String name = "spinThenPark(" + spinTime + " " + unit + ")";
+        return new WaitStrategy() {
+            @Override
+            public long idle(int iteration, long waitStart) {
+                if (System.nanoTime() - waitStart < spinNanos) {
+                    onSpinWait();
+                    return RETRY;
+                }
+                return PARK;
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy that parks virtual threads right away, and waits like
+     * {@code platformStrategy} in platform threads. A virtual thread that spins keeps its carrier
+     * thread, and when every carrier is taken by a spinning waiter, the occupants of the active
+     * room can't run to exit it, so nothing moves at all. A parked virtual thread gives up its
+     * carrier until its ticket is granted, and the granting thread unparks it.
+     * <p>
+     * On runtimes without virtual threads (before Java 21), this is the same as
+     * {@code platformStrategy}.
+     *
+     * @param platformStrategy  how platform threads wait
+     * @return a virtual-thread-aware strategy
+     */
+    public static WaitStrategy virtualThreadAware(final WaitStrategy platformStrategy) {
+        if (platformStrategy == null) {
+            throw new NullPointerException("platformStrategy");
+        }
+        if (IS_VIRTUAL == null) {
+            return platformStrategy;
+        }
+        final String name = "virtualThreadAware(" + platformStrategy + ")";
+        return new WaitStrategy() {
+            @Override
+            public long idle(int iteration, long waitStart) {
+                if (isVirtual(Thread.currentThread())) {
+                    return PARK;
+                }
+                return platformStrategy.idle(iteration, waitStart);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Returns true iff {@code thread} is a virtual thread (Java 21 and later).
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Calls {@code Thread.onSpinWait()} if the runtime provides it, and does nothing otherwise.
+     */
+    static void onSpinWait() {
+        if (ON_SPIN_WAIT != null) {
+            try {
+                ON_SPIN_WAIT.invokeExact();
+            } catch (Throwable e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static MethodHandle findOnSpinWait() {
+        try {
+            return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait",
+                    MethodType.methodType(void.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.lookup().findVirtual(Thread.class, "isVirtual",
+                    MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A strategy that never parks.
+     */
+    private abstract static class Spinning extends WaitStrategy {
+
+        private final String name;
+
+        Spinning(String name) {
+            this.name = name;
+        }
+
+        @Override
+        boolean mayPark() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package net.mintern.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.mintern.concurrent.CompatibleRooms.Room;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompatibleRoomsTest {
+
+    private static final int APPEND = 0;
+    private static final int READ_TAIL = 1;
+    private static final int COMPACT = 2;
+
+    private static final boolean[][] LOG = {
+        { true,  true, false},
+        { true,  true, false},
+        {false, false, false},
+    };
+
+    @Test
+    public void compatibleRoomsShare() {
+        CompatibleRooms rooms = new CompatibleRooms(LOG);
+        Room append = rooms.enter(APPEND);
+        Room read = rooms.tryEnter(READ_TAIL);
+        assertNotNull(read);
+        assertNull(rooms.tryEnter(COMPACT));
+        append.exit();
+        assertNull(rooms.tryEnter(COMPACT));
+        read.exit();
+        Room compact = rooms.tryEnter(COMPACT);
+        assertNotNull(compact);
+        assertNull(rooms.tryEnter(COMPACT));
+        assertNull(rooms.tryEnter(APPEND));
+        compact.exit();
+    }
+
+    @Test
+    public void waitersAreNotPassedByConflictingRooms() throws Exception {
+        final CompatibleRooms rooms = new CompatibleRooms(LOG);
+        Room append = rooms.enter(APPEND);
+        Thread compactor = new Thread() {
+            @Override
+            public void run() {
+                rooms.enter(COMPACT).exit();
+            }
+        };
+        compactor.start();
+        while (compactor.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        assertNull("a reader passed the waiting compactor", rooms.tryEnter(READ_TAIL));
+        append.exit();
+        compactor.join();
+        rooms.tryEnter(READ_TAIL).exit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void asymmetricMatrix() {
+        new CompatibleRooms(new boolean[][] {{true, true}, {false, true}});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonSquareMatrix() {
+        new CompatibleRooms(new boolean[][] {{true, true}, {true}});
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleExit() {
+        Room r = new CompatibleRooms(LOG).enter(APPEND);
+        r.exit();
+        r.exit();
+    }
+
+    @Test
+    public void tryEnterGivesUpWithoutWaiting() {
+        CompatibleRooms rooms = new CompatibleRooms(LOG);
+        Room compact = rooms.enter(COMPACT);
+        assertNull(rooms.tryEnter(APPEND));
+        compact.exit();
+        // The failed attempt left nothing behind for the other rooms to wait for.
+        rooms.enter(APPEND).exit();
+        rooms.enter(COMPACT).exit();
+    }
+
+    @Test
+    public void incompatibleRoomsAreExclusive() throws Throwable {
+        final CompatibleRooms rooms = new CompatibleRooms(LOG);
+        final int n = rooms.roomCount();
+        final AtomicInteger[] occupants = new AtomicInteger[n];
+        for (int i = 0; i < n; i++) {
+            occupants[i] = new AtomicInteger();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 2000; k++) {
+                            int i = random.nextInt(n);
+                            try (Room r = k % 2 == 0 ? rooms.tryEnter(i) : rooms.enter(i)) {
+                                if (r == null) {
+                                    continue;
+                                }
+                                occupants[i].incrementAndGet();
+                                Thread.yield(); // let the other threads try to get in
+                                for (int j = 0; j < n; j++) {
+                                    int others = occupants[j].get() - (j == i ? 1 : 0);
+                                    if (!LOG[i][j] && others != 0) {
+                                        throw new AssertionError(
+                                                "rooms " + i + " and " + j + " are both occupied");
+                                    }
+                                }
+                                occupants[i].decrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package net.mintern.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import net.mintern.concurrent.Rooms.Room;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyedRoomsTest {
+
+    private static final Supplier<Rooms> PARKING = new Supplier<Rooms>() {
+        @Override
+        public Rooms get() {
+            return new Rooms(2, WaitStrategy.park());
+        }
+    };
+
+    @Test
+    public void keysAreIndependent() throws Exception {
+        KeyedRooms<Integer> rooms = new KeyedRooms<>(16, PARKING);
+        Room r0 = rooms.enter(1, 0);
+        // Small Integers hash to their own shards.
+        Room other = rooms.tryEnter(2, 1);
+        assertNotNull(other);
+        other.exit();
+        CompletableFuture<Room> same = rooms.enterAsync(1, 1);
+        assertFalse(same.isDone());
+        r0.exit();
+        same.get().exit();
+    }
+
+    @Test
+    public void shardsAreCreatedLazily() {
+        final AtomicInteger created = new AtomicInteger();
+        KeyedRooms<String> rooms = new KeyedRooms<>(5, new Supplier<Rooms>() {
+            @Override
+            public Rooms get() {
+                created.incrementAndGet();
+                return new Rooms(2);
+            }
+        });
+        assertEquals(8, rooms.shards());
+        assertEquals(0, created.get());
+        assertSame(rooms.rooms("a"), rooms.rooms("a"));
+        assertEquals(1, created.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveShards() {
+        new KeyedRooms<String>(0, PARKING);
+    }
+
+    @Test
+    public void keyedRoomsAreExclusive() throws Throwable {
+        // Eight keys in four shards, so that every key shares its shard with another.
+        final KeyedRooms<Integer> rooms = new KeyedRooms<>(4, PARKING);
+        final int keys = 8;
+        final AtomicInteger[][] occupants = new AtomicInteger[keys][2];
+        for (int key = 0; key < keys; key++) {
+            for (int i = 0; i < 2; i++) {
+                occupants[key][i] = new AtomicInteger();
+            }
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 2000; k++) {
+                            int key = random.nextInt(keys);
+                            int i = random.nextInt(2);
+                            try (Room r = rooms.enter(key, i)) {
+                                occupants[key][i].incrementAndGet();
+                                Thread.yield(); // let the other threads try to get in
+                                if (occupants[key][1 - i].get() != 0) {
+                                    throw new AssertionError(
+                                            "both rooms of key " + key + " are occupied");
+                                }
+                                occupants[key][i].decrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        assertSame(rooms.rooms(0), rooms.rooms(4));
+    }
+}
@@ -0,0 +1,129 @@
+package net.mintern.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.mintern.concurrent.Rooms.Room;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoomExecutorTest {
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutDown() {
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void queuedTasksRunTogether() throws Exception {
+        RoomExecutor executor = new RoomExecutor(new Rooms(2, WaitStrategy.park()), workers);
+        Room r0 = executor.rooms().enter(0);
+        // Both tasks wait for each other, so they can only finish if they run at the same time.
+        final CountDownLatch together = new CountDownLatch(2);
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            futures.add(executor.submit(1, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws InterruptedException {
+                    together.countDown();
+                    return together.await(10, TimeUnit.SECONDS);
+                }
+            }));
+        }
+        Thread.sleep(10);
+        assertEquals(2, together.getCount());
+        r0.exit();
+        for (CompletableFuture<Boolean> f : futures) {
+            assertTrue(f.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void tasksAreExclusive() throws Throwable {
+        RoomExecutor executor = new RoomExecutor(new Rooms(3, WaitStrategy.park()), workers);
+        final AtomicInteger[] occupants = {
+            new AtomicInteger(), new AtomicInteger(), new AtomicInteger()
+        };
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        Random random = new Random(0);
+        for (int k = 0; k < 2000; k++) {
+            final int i = random.nextInt(3);
+            futures.add(executor.submit(i, new Runnable() {
+                @Override
+                public void run() {
+                    occupants[i].incrementAndGet();
+                    Thread.yield();
+                    for (int j = 0; j < 3; j++) {
+                        if (j != i && occupants[j].get() != 0) {
+                            failure.compareAndSet(null, new AssertionError(
+                                    "rooms " + i + " and " + j + " are both occupied"));
+                        }
+                    }
+                    occupants[i].decrementAndGet();
+                }
+            }));
+        }
+        for (CompletableFuture<Void> f : futures) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public void failedTaskExitsRoom() throws Exception {
+        RoomExecutor executor = new RoomExecutor(new Rooms(2, WaitStrategy.park()), workers);
+        CompletableFuture<Void> f = executor.submit(0, new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("task failed");
+            }
+        });
+        try {
+            f.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        executor.rooms().enter(1).exit();
+    }
+
+    @Test
+    public void cancelledTaskNeverRuns() throws Exception {
+        RoomExecutor executor = new RoomExecutor(new Rooms(2, WaitStrategy.park()), workers);
+        Room r0 = executor.rooms().enter(0);
+        final AtomicInteger runs = new AtomicInteger();
+        CompletableFuture<Void> f = executor.submit(1, new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        assertTrue(f.cancel(false));
+        assertTrue(f.isCancelled());
+        r0.exit();
+        executor.submit(1, new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertEquals(1, runs.get());
+    }
+}
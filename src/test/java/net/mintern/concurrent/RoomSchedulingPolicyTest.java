@@ -0,0 +1,107 @@
+package net.mintern.concurrent;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoomSchedulingPolicyTest {
+
+    @Test
+    public void roundRobin() {
+        RoomSchedulingPolicy policy = RoomSchedulingPolicy.roundRobin();
+        assertEquals(3, policy.nextRoom(1, backlog(5, 0, 0, 1, 1)));
+        assertEquals(0, policy.nextRoom(3, backlog(5, 0, 0, 1)));
+        assertEquals(1, policy.nextRoom(1, backlog(0, 1, 0)));
+        assertEquals(-1, policy.nextRoom(0, backlog(0, 0, 0)));
+    }
+
+    @Test
+    public void mostWaitersFirst() {
+        RoomSchedulingPolicy policy = RoomSchedulingPolicy.mostWaitersFirst();
+        assertEquals(2, policy.nextRoom(0, backlog(5, 1, 9)));
+        // Ties go to the next room in round-robin order.
+        assertEquals(0, policy.nextRoom(1, backlog(4, 4, 0)));
+        assertEquals(-1, policy.nextRoom(1, backlog(0, 0, 0)));
+    }
+
+    @Test
+    public void weightedRoundRobin() {
+        RoomSchedulingPolicy policy = RoomSchedulingPolicy.weightedRoundRobin(3, 1);
+        RoomSchedulingPolicy.Backlog both = backlog(1, 1);
+        // Room 0 was entered while idle, which used up the first of its 3 batches.
+        assertEquals(0, policy.nextRoom(0, both));
+        assertEquals(0, policy.nextRoom(0, both));
+        assertEquals(1, policy.nextRoom(0, both));
+        assertEquals(0, policy.nextRoom(1, both));
+        assertEquals(0, policy.nextRoom(0, both));
+        // A turn ends early when the room has no waiters.
+        assertEquals(1, policy.nextRoom(0, backlog(0, 1)));
+    }
+
+    @Test
+    public void priorityWithAging() {
+        RoomSchedulingPolicy policy = RoomSchedulingPolicy.priority(2, 0, 1);
+        RoomSchedulingPolicy.Backlog both = backlog(1, 1);
+        assertEquals(1, policy.nextRoom(1, both));
+        assertEquals(1, policy.nextRoom(1, both));
+        // Room 0 has been passed over twice, so it ties with room 1 and goes first in order.
+        assertEquals(0, policy.nextRoom(1, both));
+        assertEquals(1, policy.nextRoom(0, both));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weightsMustMatchRooms() {
+        Rooms.builder().schedulingPolicy(RoomSchedulingPolicy.weightedRoundRobin(1, 2)).build(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveWeight() {
+        RoomSchedulingPolicy.weightedRoundRobin(1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveAging() {
+        RoomSchedulingPolicy.priority(0, 1, 2);
+    }
+
+    @Test
+    public void policiesAreExclusive() throws Throwable {
+        RoomSchedulingPolicy[] policies = {
+            RoomSchedulingPolicy.mostWaitersFirst(),
+            RoomSchedulingPolicy.weightedRoundRobin(10, 1, 1),
+            RoomSchedulingPolicy.priority(4, 2, 1, 0),
+            new RoomSchedulingPolicy() {
+                @Override
+                public int nextRoom(int lastRoom, Backlog backlog) {
+                    // Wrong whenever room 0 has no waiters.
+                    return 0;
+                }
+            },
+        };
+        for (RoomSchedulingPolicy policy : policies) {
+            Rooms rooms = Rooms.builder()
+                    .waitStrategy(WaitStrategy.park())
+                    .schedulingPolicy(policy)
+                    .build(3);
+            RoomsTest.assertExclusive(rooms, 3, 2000);
+        }
+    }
+
+    private static RoomSchedulingPolicy.Backlog backlog(final long... waiting) {
+        return new RoomSchedulingPolicy.Backlog() {
+            @Override
+            public int rooms() {
+                return waiting.length;
+            }
+
+            @Override
+            public boolean hasWaiting(int room) {
+                return waiting[room] > 0;
+            }
+
+            @Override
+            public long waiting(int room) {
+                return waiting[room];
+            }
+        };
+    }
+}
@@ -0,0 +1,93 @@
+package net.mintern.concurrent;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import net.mintern.concurrent.Rooms.Room;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoomsEventsTest {
+
+    @Test
+    public void emitsEnterGrantExitAndSwitch() throws Exception {
+        Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .flightRecorderEvents(true)
+                .build(2);
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable("net.mintern.concurrent.RoomEnter");
+            recording.enable("net.mintern.concurrent.RoomExit");
+            recording.enable("net.mintern.concurrent.RoomGrant");
+            recording.enable("net.mintern.concurrent.RoomSwitch");
+            recording.start();
+            Room first = rooms.enter(0);
+            CompletableFuture<Room> a = rooms.enterAsync(1);
+            CompletableFuture<Room> b = rooms.enterAsync(1);
+            first.exit();
+            a.get().exit();
+            b.get().exit();
+            recording.stop();
+            Path file = Files.createTempFile("rooms", ".jfr");
+            try {
+                recording.dump(file);
+                events = RecordingFile.readAllEvents(file);
+            } finally {
+                Files.delete(file);
+            }
+        }
+        List<String> seen = new ArrayList<>();
+        for (RecordedEvent e : events) {
+            String name = e.getEventType().getName();
+            if (name.startsWith("net.mintern.concurrent.Room")) {
+                seen.add(name.substring("net.mintern.concurrent.Room".length()));
+                if (name.endsWith("Grant") && e.getInt("room") == 1) {
+                    assertEquals(2, e.getLong("batchSize"));
+                }
+            }
+        }
+        assertEquals(3, count(seen, "Enter"));
+        assertEquals(3, count(seen, "Exit"));
+        assertEquals(2, count(seen, "Grant"));
+        // -1 to 0, 0 to 1, and 1 to -1
+        assertEquals(3, count(seen, "Switch"));
+    }
+
+    @Test
+    public void noEventsByDefault() throws Exception {
+        Rooms rooms = new Rooms(2);
+        try (Recording recording = new Recording()) {
+            recording.enable("net.mintern.concurrent.RoomEnter");
+            recording.start();
+            rooms.enter(0).exit();
+            recording.stop();
+            Path file = Files.createTempFile("rooms", ".jfr");
+            try {
+                recording.dump(file);
+                for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                    assertFalse(e.getEventType().getName().startsWith("net.mintern"));
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static int count(List<String> seen, String name) {
+        int count = 0;
+        for (String s : seen) {
+            if (s.equals(name)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
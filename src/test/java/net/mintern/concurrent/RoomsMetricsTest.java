@@ -0,0 +1,95 @@
+package net.mintern.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.mintern.concurrent.Rooms.Room;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoomsMetricsTest {
+
+    @Test
+    public void recordsEntriesBatchesAndSwitches() throws Exception {
+        Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .recordMetrics(true)
+                .build(2);
+        Room first = rooms.enter(0);
+        CompletableFuture<Room> a = rooms.enterAsync(1);
+        CompletableFuture<Room> b = rooms.enterAsync(1);
+        Thread.sleep(5);
+        first.exit();
+        a.get().exit();
+        b.get().exit();
+
+        RoomsMetrics metrics = rooms.metrics();
+        assertEquals(1, metrics.room(0).entries());
+        assertEquals(2, metrics.room(1).entries());
+        assertTrue(metrics.room(1).waitTime().max() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(1, metrics.room(0).batchSize().count());
+        assertEquals(2, metrics.room(1).batchSize().max());
+        assertEquals(1, metrics.room(0).holdTime().count());
+        assertTrue(metrics.room(0).holdTime().max() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertEquals(1, metrics.switches());
+        assertEquals(1, metrics.idleTransitions());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void metricsMustBeEnabled() {
+        new Rooms(2).metrics();
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        Histogram.Recorder recorder = new Histogram.Recorder();
+        for (int i = 1; i <= 100; i++) {
+            recorder.record(i);
+        }
+        recorder.record(-1);
+        Histogram h = recorder.snapshot();
+        assertEquals(101, h.count());
+        assertEquals(5050, h.sum());
+        assertEquals(100, h.max());
+        assertEquals(1, h.bucket(0));
+        assertEquals(0, h.percentile(0));
+        // 50 falls in the bucket from 32 to 63.
+        assertEquals(63, h.percentile(50));
+        assertEquals(100, h.percentile(100));
+    }
+
+    @Test
+    public void registersMBean() throws Exception {
+        Rooms rooms = Rooms.builder().recordMetrics(true).build(3);
+        rooms.enter(2).exit();
+        ObjectName name = new ObjectName("net.mintern.concurrent:type=Rooms,name=test");
+        rooms.registerMBean(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            assertEquals(3, server.getAttribute(name, "RoomCount"));
+            assertArrayEquals(new long[] {0, 0, 1}, (long[]) server.getAttribute(name, "Entries"));
+            assertEquals(1L, server.getAttribute(name, "IdleTransitions"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void recordingRoomsAreExclusive() throws Throwable {
+        Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .maxBatchSize(2)
+                .recordMetrics(true)
+                .build(3);
+        RoomsTest.assertExclusive(rooms, 3, 2000);
+        RoomsMetrics metrics = rooms.metrics();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(metrics.room(i).batchSize().count(), metrics.room(i).holdTime().count());
+            assertTrue(metrics.room(i).batchSize().max() <= 2);
+        }
+    }
+}
@@ -1,16 +1,1026 @@
 package net.mintern.concurrent;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import net.mintern.concurrent.Rooms.Room;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 /**
- * TODO: Add tests.
- *
  * @author Brandon Mintern
  */
 public class RoomsTest {
 
     @Test
-    public void test() {
+    public void spinningRoomsAreExclusive() throws Throwable {
+        // Spinning waiters steal time from room occupants on small machines, so keep this short.
+        assertExclusive(new Rooms(3), 3, 20);
+    }
+
+    @Test
+    public void parkingRoomsAreExclusive() throws Throwable {
+        assertExclusive(new Rooms(3, 0, TimeUnit.NANOSECONDS), 3, 2000);
+    }
+
+    @Test
+    public void spinThenParkRoomsAreExclusive() throws Throwable {
+        assertExclusive(new Rooms(3, 10, TimeUnit.MICROSECONDS), 3, 2000);
+    }
+
+    @Test
+    public void waitStrategiesAreExclusive() throws Throwable {
+        WaitStrategy[] strategies = {
+            WaitStrategy.spinWithHint(),
+            WaitStrategy.yielding(),
+            WaitStrategy.exponentialBackoff(64),
+            WaitStrategy.park(),
+            WaitStrategy.timedPark(1, TimeUnit.MILLISECONDS),
+            WaitStrategy.virtualThreadAware(WaitStrategy.spinThenPark(10, TimeUnit.MICROSECONDS)),
+        };
+        for (WaitStrategy strategy : strategies) {
+            int iterations = strategy.mayPark() ? 2000 : 20;
+            assertExclusive(new Rooms(3, strategy), 3, iterations);
+        }
+    }
+
+    @Test
+    public void virtualThreadsDontPinCarriers() throws Exception {
+        Method start;
+        try {
+            start = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return;     // no virtual threads before Java 21
+        }
+        // Far more waiters than carriers, which would all spin forever with busySpin alone.
+        final Rooms rooms = new Rooms(3, WaitStrategy.virtualThreadAware(WaitStrategy.busySpin()));
+        final AtomicInteger done = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 1000; t++) {
+            final int room = t % 3;
+            threads.add((Thread) start.invoke(null, new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        rooms.enter(room).exit();
+                    }
+                    done.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        assertEquals(1000, done.get());
+    }
+
+    @Test
+    public void stripedExitsAreExclusive() throws Throwable {
+        assertExclusive(new Rooms(3, WaitStrategy.park(), 2), 3, 2000);
+        assertExclusive(new Rooms(3, WaitStrategy.park(), 4), 3, 2000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stripesMustBePowerOfTwo() {
+        Rooms.builder().stripes(3);
+    }
+
+    @Test
+    public void stripedBatchEndsAfterLastExit() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, WaitStrategy.park(), 4);
+        Room r1 = rooms.enter(1);
+        final CountDownLatch exited = new CountDownLatch(10);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 10; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try (Room r0 = rooms.enter(0)) {
+                        Thread.yield();
+                    }
+                    exited.countDown();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        awaitWaiting(threads);
+        r1.exit();
+        assertTrue(exited.await(10, TimeUnit.SECONDS));
+        // Room 0's batch of 10 ended, so room 1 is available again.
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void customWaitStrategy() throws Throwable {
+        final AtomicInteger calls = new AtomicInteger();
+        Rooms rooms = new Rooms(3, new WaitStrategy() {
+            @Override
+            public long idle(int iteration, long waitStart) {
+                calls.incrementAndGet();
+                return iteration < 10 ? RETRY : PARK;
+            }
+        });
+        assertExclusive(rooms, 3, 2000);
+        assertTrue(calls.get() > 0);
+    }
+
+    @Test
+    public void parkedWaiterIsUnparkedByLastExit() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, 0, TimeUnit.NANOSECONDS);
+        Room r0 = rooms.enter(0);
+        final CountDownLatch entered = new CountDownLatch(1);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try (Room r1 = rooms.enter(1)) {
+                    entered.countDown();
+                }
+            }
+        };
+        t.start();
+        awaitWaiting(Collections.singletonList(t));
+        assertEquals(1, entered.getCount());
+        r0.exit();
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        t.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeSpinTime() {
+        new Rooms(1, -1, TimeUnit.NANOSECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveBackoff() {
+        WaitStrategy.exponentialBackoff(0);
+    }
+
+    @Test
+    public void enterPreservesInterruptStatus() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, WaitStrategy.park());
+        Room r0 = rooms.enter(0);
+        final AtomicReference<Boolean> interrupted = new AtomicReference<>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try (Room r1 = rooms.enter(1)) {
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                }
+            }
+        };
+        t.start();
+        awaitWaiting(Collections.singletonList(t));
+        t.interrupt();
+        Thread.sleep(10);
+        assertNull(interrupted.get());
+        r0.exit();
+        t.join(10000);
+        assertEquals(Boolean.TRUE, interrupted.get());
+    }
+
+    @Test
+    public void enterInterruptiblyWithdrawsItsTicket() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, WaitStrategy.park());
+        Room r0 = rooms.enter(0);
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rooms.enterInterruptibly(1);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        };
+        t.start();
+        awaitWaiting(Collections.singletonList(t));
+        t.interrupt();
+        t.join(10000);
+        assertTrue(thrown.get() instanceof InterruptedException);
+        r0.exit();
+        // Room 1's only ticket was withdrawn, so room 0 is free right away.
+        Room again = rooms.tryEnter(0);
+        assertNotNull(again);
+        again.exit();
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void enterInterruptiblyWhileInterrupted() throws InterruptedException {
+        Thread.currentThread().interrupt();
+        new Rooms(1).enterInterruptibly(0);
+    }
+
+    @Test
+    public void tryEnterOnlyWhenIdle() {
+        Rooms rooms = new Rooms(2, WaitStrategy.park());
+        Room r0 = rooms.tryEnter(0);
+        assertNotNull(r0);
+        assertNull(rooms.tryEnter(1));
+        // A new ticket is never added to a batch that has already been granted.
+        assertNull(rooms.tryEnter(0));
+        r0.exit();
+        rooms.tryEnter(1).exit();
+    }
+
+    @Test
+    public void timedTryEnterWithdrawsItsTicket() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, WaitStrategy.park(), 2);
+        Room r0 = rooms.enter(0);
+        assertNull(rooms.tryEnter(1, 10, TimeUnit.MILLISECONDS));
+        r0.exit();
+        // Room 1's only ticket was withdrawn, so its batch ended as soon as it was granted.
+        Room again = rooms.tryEnter(0);
+        assertNotNull(again);
+        again.exit();
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void timedTryEnterSucceedsWhenRoomFrees() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, WaitStrategy.park());
+        final Room r0 = rooms.enter(0);
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                r0.exit();
+            }
+        };
+        t.start();
+        Room r1 = rooms.tryEnter(1, 10, TimeUnit.SECONDS);
+        assertNotNull(r1);
+        r1.exit();
+        t.join();
+    }
+
+    @Test
+    public void timedTryEnterIsInterruptible() throws InterruptedException {
+        final Rooms rooms = new Rooms(2, WaitStrategy.park());
+        Room r0 = rooms.enter(0);
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    rooms.tryEnter(1, 1, TimeUnit.HOURS);
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        };
+        t.start();
+        while (t.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        t.interrupt();
+        t.join(10000);
+        assertTrue(thrown.get() instanceof InterruptedException);
+        r0.exit();
+        rooms.enter(0).exit();
+    }
+
+    @Test
+    public void timedTryEntersAreExclusive() throws Throwable {
+        assertExclusive(new Rooms(3, WaitStrategy.park(), 2), 3, 2000, true);
+    }
+
+    @Test
+    public void enterAsyncCompletesWhenGranted() throws Exception {
+        Rooms rooms = new Rooms(2);
+        CompletableFuture<Room> f0 = rooms.enterAsync(0);
+        assertTrue(f0.isDone());
+        CompletableFuture<Room> f1 = rooms.enterAsync(1);
+        assertFalse(f1.isDone());
+        f0.get().exit();
+        // The last one out of room 0 completed f1 before returning.
+        assertTrue(f1.isDone());
+        f1.get().exit();
+        rooms.enter(0).exit();
+    }
+
+    @Test
+    public void enterAsyncUsesExecutor() throws Exception {
+        Rooms rooms = new Rooms(2, WaitStrategy.park());
+        final AtomicInteger executed = new AtomicInteger();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                new Thread(command).start();
+            }
+        };
+        Room r0 = rooms.enter(0);
+        CompletableFuture<Room> f1 = rooms.enterAsync(1, executor);
+        r0.exit();
+        f1.get(10, TimeUnit.SECONDS).exit();
+        assertEquals(1, executed.get());
+    }
+
+    @Test
+    public void cancelledEnterAsyncWithdrawsItsTicket() {
+        Rooms rooms = new Rooms(2);
+        Room r0 = rooms.enter(0);
+        CompletableFuture<Room> f1 = rooms.enterAsync(1);
+        assertTrue(f1.cancel(false));
+        r0.exit();
+        Room again = rooms.tryEnter(0);
+        assertNotNull(again);
+        again.exit();
+    }
+
+    @Test
+    public void asyncEntriesAreExclusive() throws Throwable {
+        assertAsyncExclusive(new Rooms(3, WaitStrategy.park(), 2));
+        assertAsyncExclusive(Rooms.builder().maxBatchSize(3).stripes(2).build(3));
+    }
+
+    /**
+     * Enters random rooms asynchronously, while this thread holds other rooms to make the entries
+     * queue up, failing if any entry observes an occupant of another room.
+     */
+    static void assertAsyncExclusive(final Rooms rooms) throws Throwable {
+        final AtomicInteger[] occupants = {
+            new AtomicInteger(), new AtomicInteger(), new AtomicInteger()
+        };
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        Random random = new Random(0);
+        Room held = null;
+        for (int k = 0; k < 2000; k++) {
+            final int i = random.nextInt(3);
+            done.add(rooms.enterAsync(i).thenAccept(new Consumer<Room>() {
+                @Override
+                public void accept(Room r) {
+                    try (Room room = r) {
+                        occupants[i].incrementAndGet();
+                        for (int j = 0; j < 3; j++) {
+                            if (j != i && occupants[j].get() != 0) {
+                                failure.compareAndSet(null, new AssertionError(
+                                        "rooms " + i + " and " + j + " are both occupied"));
+                            }
+                        }
+                        occupants[i].decrementAndGet();
+                    }
+                }
+            }));
+            if (k % 10 == 0) {
+                // Hold a room for a while, so that entries queue up behind it.
+                if (held != null) {
+                    held.exit();
+                }
+                held = rooms.enter(random.nextInt(3));
+            }
+        }
+        held.exit();
+        for (CompletableFuture<Void> f : done) {
+            f.get(10, TimeUnit.SECONDS);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public void batchSizeIsBounded() throws InterruptedException {
+        final Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .maxBatchSize(2)
+                .stripes(2)
+                .build(2);
+        Room r1 = rooms.enter(1);
+        final AtomicInteger occupants = new AtomicInteger();
+        final AtomicInteger maxOccupants = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 10; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try (Room r0 = rooms.enter(0)) {
+                        int n = occupants.incrementAndGet();
+                        while (maxOccupants.get() < n) {
+                            maxOccupants.compareAndSet(maxOccupants.get(), n);
+                        }
+                        Thread.yield();
+                        occupants.decrementAndGet();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        awaitWaiting(threads);
+        r1.exit();
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+        assertTrue(maxOccupants.get() > 0);
+        assertTrue(maxOccupants.get() <= 2);
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void boundedBatchesAreExclusive() throws Throwable {
+        Rooms.Builder builder = Rooms.builder().waitStrategy(WaitStrategy.park());
+        assertExclusive(builder.maxBatchSize(1).build(3), 3, 2000);
+        assertExclusive(builder.maxBatchSizes(2, 1, 3).stripes(2).build(3), 3, 2000, true);
+    }
+
+    @Test
+    public void timeQuantumEndsTurn() throws Exception {
+        // Without a quantum, this policy would keep room 0 active for as long as it has waiters.
+        RoomSchedulingPolicy stay = new RoomSchedulingPolicy() {
+            @Override
+            public int nextRoom(int lastRoom, Backlog backlog) {
+                return backlog.hasWaiting(0) ? 0 : roundRobin().nextRoom(lastRoom, backlog);
+            }
+        };
+        Rooms rooms = Rooms.builder()
+                .schedulingPolicy(stay)
+                .timeQuantum(1, TimeUnit.MILLISECONDS)
+                .build(2);
+        Room r0 = rooms.enter(0);
+        CompletableFuture<Room> again = rooms.enterAsync(0);
+        CompletableFuture<Room> other = rooms.enterAsync(1);
+        Thread.sleep(5);
+        r0.exit();
+        assertTrue(other.isDone());
+        assertFalse(again.isDone());
+        other.get().exit();
+        assertTrue(again.isDone());
+        again.get().exit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveTimeQuantum() {
+        Rooms.builder().timeQuantum(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void openDoorAdmitsLatecomers() throws Exception {
+        Rooms rooms = Rooms.builder().openDoor(true).stripes(2).build(2);
+        Room r0 = rooms.enter(0);
+        // Without an open door, this would wait for r0 to exit.
+        Room late = rooms.enter(0);
+        Room immediate = rooms.tryEnter(0);
+        assertNotNull(immediate);
+        // Once another room is waiting, the door closes.
+        CompletableFuture<Room> other = rooms.enterAsync(1);
+        assertNull(rooms.tryEnter(0));
+        CompletableFuture<Room> next = rooms.enterAsync(0);
+        r0.exit();
+        late.exit();
+        assertFalse(other.isDone());
+        immediate.exit();
+        assertTrue(other.isDone());
+        assertFalse(next.isDone());
+        other.get().exit();
+        next.get().exit();
+    }
+
+    @Test
+    public void openDoorRoomsAreExclusive() throws Throwable {
+        Rooms.Builder builder = Rooms.builder().waitStrategy(WaitStrategy.park()).openDoor(true);
+        assertExclusive(builder.build(3), 3, 2000);
+        assertExclusive(builder.stripes(2).maxBatchSize(2).build(3), 3, 2000, true);
+    }
+
+    @Test
+    public void lingerGrowsBatch() throws Exception {
+        final Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .lingers(TimeUnit.SECONDS, 10, 0)
+                .maxBatchSize(2)
+                .build(2);
+        Room r1 = rooms.enter(1);
+        CompletableFuture<Room> first = rooms.enterAsync(0);
+        Thread late = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                rooms.enter(0).exit();
+            }
+        };
+        late.start();
+        // We linger in room 0 until the late thread takes its ticket, which fills the batch...
+        r1.exit();
+        // ...so it enters along with the first entry, without waiting for it to exit.
+        late.join(10000);
+        assertFalse(late.isAlive());
+        first.get().exit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeLinger() {
+        Rooms.builder().linger(-1, TimeUnit.MICROSECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchSizesMustMatchRooms() {
+        Rooms.builder().maxBatchSizes(1, 2).build(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveBatchSize() {
+        Rooms.builder().maxBatchSize(0);
+    }
+
+    @Test
+    public void reentrantRoomCountsNestedEntries() throws Exception {
+        Rooms rooms = Rooms.builder().waitStrategy(WaitStrategy.park()).reentrant(true).build(2);
+        Room outer = rooms.enter(0);
+        Room inner = rooms.enter(0);
+        Room nested = rooms.tryEnter(0);
+        assertSame(outer, nested);
+        CompletableFuture<Room> other = rooms.enterAsync(1);
+        nested.exit();
+        inner.exit();
+        assertFalse(other.isDone());
+        outer.exit();
+        other.get().exit();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reentrantRoomRejectsOtherRoom() {
+        Rooms rooms = Rooms.builder().reentrant(true).build(2);
+        try (Room r = rooms.enter(0)) {
+            rooms.enter(1);
+        }
+    }
+
+    @Test
+    public void reentrantTryEnterFailsForOtherRoom() throws Exception {
+        Rooms rooms = Rooms.builder().reentrant(true).build(2);
+        try (Room r = rooms.enter(0)) {
+            assertNull(rooms.tryEnter(1));
+            assertNull(rooms.tryEnter(1, 1, TimeUnit.MILLISECONDS));
+        }
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void reentrantRoomCanBeReenteredAfterRetiring() {
+        Rooms rooms = Rooms.builder().reentrant(true).build(2);
+        try (Room outer = rooms.enter(1)) {
+            rooms.retireRoom(1);
+            rooms.enter(1).exit();
+            assertSame(outer, rooms.tryEnter(1));
+            outer.exit();
+        }
+        rooms.enter(0).exit();
+    }
+
+    @Test
+    public void reentrantRoomsAreExclusive() throws Throwable {
+        Rooms rooms = Rooms.builder().waitStrategy(WaitStrategy.park()).reentrant(true).build(3);
+        assertExclusive(rooms, 3, 2000);
+    }
+
+    @Test
+    public void handleCloseIsIdempotent() throws Exception {
+        Rooms rooms = new Rooms(2, WaitStrategy.park());
+        Rooms.Handle first;
+        try (Rooms.Handle h = rooms.enterHandle(0)) {
+            first = h;
+            assertNotNull(h.room());
+            h.close();
+            assertNull(h.room());
+            // A second close would have broken the next batch.
+            CompletableFuture<Room> other = rooms.enterAsync(1);
+            assertTrue(other.isDone());
+            other.get().exit();
+        }
+        // A stray close of an old handle doesn't exit a newer entry.
+        Rooms.Handle again = rooms.enterHandle(0);
+        assertNotSame(first, again);
+        first.close();
+        assertNotNull(again.room());
+        assertNull(rooms.tryEnter(1));
+        again.close();
+        again.close();
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void handlesAreReusedInTurn() {
+        Rooms rooms = new Rooms(2);
+        Rooms.Handle first = rooms.enterHandle(0);
+        first.close();
+        for (int k = 1; k < Rooms.HANDLES; k++) {
+            Rooms.Handle h = rooms.enterHandle(k % 2);
+            assertNotSame(first, h);
+            h.close();
+        }
+        Rooms.Handle again = rooms.enterHandle(0);
+        assertSame(first, again);
+        again.close();
+    }
+
+    @Test
+    public void nestedHandlesAreDistinct() {
+        Rooms rooms = Rooms.builder().openDoor(true).build(2);
+        try (Rooms.Handle outer = rooms.enterHandle(0);
+                Rooms.Handle inner = rooms.enterHandle(0)) {
+            assertNotSame(outer, inner);
+        }
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void diagnosticsCatchDoubleExit() {
+        Rooms rooms = Rooms.builder().diagnostics(true).build(2);
+        Room r0 = rooms.enter(0);
+        r0.exit();
+        try {
+            r0.exit();
+            fail("exited twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        rooms.enter(1).exit();
+    }
+
+    @Test
+    public void diagnosticsCatchWrongRoomExit() throws Exception {
+        Rooms rooms = Rooms.builder().waitStrategy(WaitStrategy.park()).diagnostics(true).build(2);
+        Room stale = rooms.enter(1);
+        stale.exit();
+        Room r0 = rooms.enter(0);
+        try {
+            stale.exit();
+            fail("exited a room that we weren't in");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("room 0"));
+        }
+        CompletableFuture<Room> r1 = rooms.enterAsync(1);
+        r0.exit();
+        // Asynchronous entries may be exited by any thread, but only once.
+        final Room entered = r1.get();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                entered.exit();
+            }
+        };
+        t.start();
+        t.join(10000);
+        try {
+            entered.exit();
+            fail("exited twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        rooms.enter(0).exit();
+    }
+
+    @Test
+    public void diagnosticRoomsAreExclusive() throws Throwable {
+        Rooms.Builder builder = Rooms.builder().waitStrategy(WaitStrategy.park()).diagnostics(true);
+        assertExclusive(builder.build(3), 3, 2000, true);
+        assertAsyncExclusive(builder.openDoor(true).build(3));
+    }
+
+    @Test
+    public void chainedAsyncExitsDoNotRecurse() throws Exception {
+        Rooms rooms = Rooms.builder().maxBatchSize(1).build(2);
+        Room holder = rooms.enter(0);
+        Consumer<Room> exit = new Consumer<Room>() {
+            @Override
+            public void accept(Room room) {
+                room.exit();
+            }
+        };
+        List<CompletableFuture<Void>> exits = new ArrayList<>();
+        for (int k = 0; k < 50000; k++) {
+            exits.add(rooms.enterAsync(0).thenAccept(exit));
+        }
+        holder.exit();
+        for (CompletableFuture<Void> f : exits) {
+            assertTrue(f.isDone());
+            f.get();
+        }
+        assertNotNull(rooms.tryEnter(1));
+    }
+
+    @Test
+    public void addedRoomsTakeTurns() throws Exception {
+        Rooms rooms = new Rooms(1, WaitStrategy.park());
+        Room r0 = rooms.enter(0);
+        assertEquals(1, rooms.addRoom());
+        assertEquals(2, rooms.roomCount());
+        CompletableFuture<Room> added = rooms.enterAsync(1);
+        assertFalse(added.isDone());
+        r0.exit();
+        added.get().exit();
+    }
+
+    @Test
+    public void retiredRoomLetsWaitersIn() throws Exception {
+        Rooms rooms = new Rooms(2, WaitStrategy.park());
+        Room r0 = rooms.enter(0);
+        CompletableFuture<Room> waiting = rooms.enterAsync(1);
+        rooms.retireRoom(1);
+        try {
+            rooms.enter(1);
+            fail("entered a retired room");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        r0.exit();
+        waiting.get().exit();
+        rooms.enter(0).exit();
+    }
+
+    @Test
+    public void retiredRoomIsReleasedOnceDrained() throws Exception {
+        Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .recordMetrics(true)
+                .build(2);
+        rooms.enter(1).exit();
+        Room r0 = rooms.enter(0);
+        CompletableFuture<Room> waiting = rooms.enterAsync(1);
+        rooms.retireRoom(1);
+        r0.exit();
+        Room r1 = waiting.get();
+        assertEquals(2, rooms.metrics().room(1).entries());
+        r1.exit();
+        assertEquals(0, rooms.metrics().room(1).entries());
+        assertEquals(2, rooms.roomCount());
+        try {
+            rooms.retireRoom(1);
+            fail("retired a room twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        rooms.enter(0).exit();
+    }
+
+    @Test
+    public void roomsRetireWhileThreadsEnterThem() throws Throwable {
+        final Rooms rooms = new Rooms(1, 10, TimeUnit.MICROSECONDS);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; done.getCount() > 0; k++) {
+                            // Favor the newest room, which is about to be retired.
+                            int n = rooms.roomCount();
+                            int i = random.nextBoolean() ? n - 1 : random.nextInt(n);
+                            try (Room r = k % 2 == 0 ? rooms.tryEnter(i) : rooms.enter(i)) {
+                                // nothing to do inside
+                            } catch (IllegalStateException e) {
+                                // retired
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (int k = 0; k < 2000; k++) {
+            rooms.retireRoom(rooms.addRoom());
+        }
+        done.countDown();
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse("a thread is stuck", t.isAlive());
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        rooms.tryEnter(0).exit();
+    }
+
+    @Test
+    public void tryEnterRacingRetireRoomLeavesRoomsUsable() throws Throwable {
+        final Rooms rooms = new Rooms(1);
+        final int iterations = 5000;
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger retired = new AtomicInteger();
+        Thread retirer = new Thread() {
+            @Override
+            public void run() {
+                while (retired.get() < iterations) {
+                    int room = added.get();
+                    if (room > retired.get()) {
+                        rooms.retireRoom(room);
+                        retired.set(room);
+                    }
+                }
+            }
+        };
+        retirer.start();
+        for (int k = 1; k <= iterations; k++) {
+            added.set(rooms.addRoom());
+            try (Room r = rooms.tryEnter(k)) {
+                // nothing to do inside
+            } catch (IllegalStateException e) {
+                // retired first
+            }
+            while (retired.get() < k) {
+                Thread.yield();
+            }
+        }
+        retirer.join();
+        Room r0 = rooms.tryEnter(0);
+        assertNotNull("no room can be entered", r0);
+        r0.exit();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void policyMustScheduleAddedRoom() {
+        Rooms.builder()
+                .schedulingPolicy(RoomSchedulingPolicy.weightedRoundRobin(1, 2))
+                .build(2)
+                .addRoom();
+    }
+
+    @Test
+    public void addedRoomsAreExclusive() throws Throwable {
+        Rooms rooms = new Rooms(1, WaitStrategy.park());
+        rooms.addRoom();
+        rooms.addRoom();
+        assertExclusive(rooms, 3, 2000);
+    }
+
+    @Test
+    public void exclusiveRoomAdmitsOne() throws Exception {
+        Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .openDoor(true)
+                .exclusive(1)
+                .build(2);
+        Room r0 = rooms.enter(0);
+        rooms.tryEnter(0).exit();       // the door is open
+        r0.exit();
+        Room r1 = rooms.enter(1);
+        assertNull(rooms.tryEnter(1));
+        CompletableFuture<Room> second = rooms.enterAsync(1);
+        CompletableFuture<Room> third = rooms.enterAsync(1);
+        assertFalse(second.isDone());
+        r1.exit();
+        second.get().exit();
+        third.get().exit();
+    }
+
+    @Test
+    public void capacityLimitsOccupancy() throws Throwable {
+        final Rooms rooms = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .openDoor(true)
+                .capacities(2, Integer.MAX_VALUE)
+                .build(2);
+        final AtomicInteger occupants = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < 2000; k++) {
+                            try (Room r = rooms.enter(0)) {
+                                if (occupants.incrementAndGet() > 2) {
+                                    throw new AssertionError("room 0 is over capacity");
+                                }
+                                Thread.yield(); // let the other threads try to get in
+                                occupants.decrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public void cappedRoomsAreExclusive() throws Throwable {
+        Rooms.Builder builder = Rooms.builder()
+                .waitStrategy(WaitStrategy.park())
+                .capacities(3, 2, Integer.MAX_VALUE)
+                .exclusive(0);
+        assertExclusive(builder.build(3), 3, 2000, true);
+        assertAsyncExclusive(builder.openDoor(true).build(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityForEachRoom() {
+        Rooms.builder().capacities(1, 2).build(3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exclusiveRoomOutOfRange() {
+        Rooms.builder().exclusive(3).build(3);
+    }
+
+    /**
+     * Waits until every thread in {@code threads} is parked.
+     */
+    static void awaitWaiting(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            while (t.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    static void assertExclusive(Rooms rooms, int n, int iterations) throws Throwable {
+        assertExclusive(rooms, n, iterations, false);
+    }
+
+    /**
+     * Runs several threads that each enter random rooms {@code iterations} times, failing if any
+     * thread observes an occupant of another room while it is inside its own. If {@code timed},
+     * every other attempt is a {@link Rooms#tryEnter(int, long, TimeUnit)} with a short timeout.
+     */
+    static void assertExclusive(final Rooms rooms, final int n, final int iterations,
+            final boolean timed) throws Throwable {
+        final AtomicInteger[] occupants = new AtomicInteger[n];
+        for (int i = 0; i < n; i++) {
+            occupants[i] = new AtomicInteger();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int k = 0; k < iterations; k++) {
+                            int i = random.nextInt(n);
+                            try (Room r = timed && k % 2 == 0
+                                    ? rooms.tryEnter(i, random.nextInt(100), TimeUnit.MICROSECONDS)
+                                    : rooms.enter(i)) {
+                                if (r == null) {
+                                    continue;
+                                }
+                                occupants[i].incrementAndGet();
+                                Thread.yield(); // let the other threads try to get in
+                                for (int j = 0; j < n; j++) {
+                                    if (j != i && occupants[j].get() != 0) {
+                                        throw new AssertionError(
+                                                "rooms " + i + " and " + j + " are both occupied");
+                                    }
+                                }
+                                occupants[i].decrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
     }
-}
\ No newline at end of file
+}